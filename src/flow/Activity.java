@@ -0,0 +1,239 @@
+package flow;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * <p>Where the simulation does its work, tile by tile.</p>
+ * <p>Counts, for each {@link TILE}x{@link TILE} tile of the grid:</p>
+ * <ul>
+ * <li>{@link Kind#UPDATES}: points where water moved or ran off,</li>
+ * <li>{@link Kind#BOUNDARY}: those on zone boundaries, which are done
+ * holding the lock ({@link Water#updateS}). This is where threads
+ * <em>may</em> contend for the lock, not where they did: waits for the
+ * lock aren't counted,</li>
+ * <li>{@link Kind#OSCILLATIONS}: moves straight back to the point the
+ * water last came from, i.e. water sloshing between two points without
+ * getting anywhere.</li>
+ * </ul>
+ * <p>Each simulation thread counts into its own stripe of counters, so
+ * counting takes no locks or atomics; the stripes are added up when read.
+ * Reads while the simulation runs may be a step behind, which doesn't
+ * matter for a heatmap.</p>
+ * <p>The one thing shared is {@link from}, the direction water last came
+ * from at each point. A move on a zone boundary writes it for a point in
+ * the neighbouring zone, which that zone's thread may be reading or
+ * writing at the same time, without a lock. The race is benign: a
+ * <code>byte</code> is never torn (JLS 17.6), so a read sees either value,
+ * and the worst that can happen is one oscillation on a boundary point
+ * counted or missed. It is kept shared so that water sloshing across a
+ * boundary is counted at all.</p>
+ * <p>Shown as an overlay by {@link FlowPanel}, and exported as grid files
+ * in the same format as terrain files (rows and columns of tiles, then
+ * one count per tile).</p>
+ *
+ * @author avk
+ */
+public class Activity {
+
+	/**
+	 * <p>What is counted.</p>
+	 */
+	enum Kind {
+		UPDATES, BOUNDARY, OSCILLATIONS;
+
+		@Override
+		public String toString() {
+			return name().toLowerCase();
+		}
+	}
+
+	final static int TILE = 4; // Points per side of a tile
+
+	int dimx, dimy; // Grid
+	int tilesX, tilesY, tiles;
+
+	/**
+	 * <p>Counters of each thread: <code>[thread][kind*tiles + tile]</code>,
+	 * tiles numbered <code>tx*tilesY + ty</code>.</p>
+	 */
+	private final int[][] counts;
+
+	/**
+	 * <p>Neighbour number (plus one) the water at each point last came
+	 * from, 0 if none. Indexed <code>x*dimy + y</code>.</p>
+	 * <p>Shared by all threads, unsynchronized (see the class comment).</p>
+	 */
+	private final byte[] from;
+
+	// Reused when reading (by the UI thread)
+	private long[] sum;
+	private BufferedImage img;
+
+	/**
+	 * <p>Sets up zero counts.</p>
+	 *
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 * @param threads number of simulation threads
+	 */
+	Activity(int dimx, int dimy, int threads) {
+		this.dimx = dimx;
+		this.dimy = dimy;
+		tilesX = (dimx+TILE-1)/TILE;
+		tilesY = (dimy+TILE-1)/TILE;
+		tiles = tilesX*tilesY;
+		counts = new int[threads][Kind.values().length*tiles];
+		from = new byte[dimx*dimy];
+		sum = new long[tiles];
+		img = new BufferedImage(tilesX, tilesY, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * <p>Counts water moving to a neighbour.</p>
+	 *
+	 * @param t thread number
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param i neighbour number moved to (offsets {@link DescentTable#DX}, {@link DescentTable#DY})
+	 * @param locked whether the move was done holding the lock
+	 */
+	void moved(int t, int x, int y, int i, boolean locked) {
+		int[] c = counts[t];
+		int tile = (x/TILE)*tilesY + y/TILE;
+		c[tile]++;
+		if (locked) {
+			c[tiles + tile]++;
+		}
+
+		// Neighbours i and 7-i are opposite each other
+		int p = x*dimy + y;
+		if (from[p] == i+1) {
+			c[2*tiles + tile]++;
+		}
+		from[p + DescentTable.DX[i]*dimy + DescentTable.DY[i]] = (byte)(8-i);
+	}
+
+	/**
+	 * <p>Counts water running off the edge.</p>
+	 *
+	 * @param t thread number
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param locked whether it was done holding the lock
+	 */
+	void ranOff(int t, int x, int y, boolean locked) {
+		int[] c = counts[t];
+		int tile = (x/TILE)*tilesY + y/TILE;
+		c[tile]++;
+		if (locked) {
+			c[tiles + tile]++;
+		}
+	}
+
+	/**
+	 * <p>Sets all counts back to zero.</p>
+	 * <p>Call between steps.</p>
+	 */
+	void clear() {
+		for (int[] c : counts) {
+			Arrays.fill(c, 0);
+		}
+		Arrays.fill(from, (byte)0);
+	}
+
+	/**
+	 * <p>Adds up the threads' counts of one kind.</p>
+	 *
+	 * @param k kind of count
+	 * @param into count of each tile (<code>tx*tilesY + ty</code>)
+	 * @return largest count
+	 */
+	long total(Kind k, long[] into) {
+		Arrays.fill(into, 0);
+		int off = k.ordinal()*tiles;
+		for (int[] c : counts) {
+			for (int i=0; i<tiles; i++) {
+				into[i] += c[off + i];
+			}
+		}
+		long max = 0;
+		for (long v : into) {
+			max = Math.max(max, v);
+		}
+		return max;
+	}
+
+	/**
+	 * <p>Heatmap of one kind of count, one pixel per tile.</p>
+	 * <p>Colors go from dark red to yellow on a log scale of the count, and
+	 * tiles with no count are transparent. The image is reused: draw it
+	 * before calling again. Call from one thread (the UI's).</p>
+	 *
+	 * @param k kind of count
+	 * @return image of <code>tilesX</code> by <code>tilesY</code> pixels
+	 */
+	BufferedImage image(Kind k) {
+		long max = total(k, sum);
+		int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		double scale = max > 0 ? 1/Math.log1p(max) : 0;
+		for (int tx=0; tx<tilesX; tx++) {
+			for (int ty=0; ty<tilesY; ty++) {
+				long v = sum[tx*tilesY + ty];
+				if (v == 0) {
+					px[ty*tilesX + tx] = 0;
+					continue;
+				}
+				float f = (float)(Math.log1p(v)*scale); // (0,1]
+				int r = 128 + (int)(127*Math.min(1f, 2*f));
+				int g = (int)(255*Math.max(0f, 2*f-1));
+				px[ty*tilesX + tx] = (176<<24) | (r<<16) | (g<<8);
+			}
+		}
+		return img;
+	}
+
+	/**
+	 * <p>Writes each kind of count to a grid file.</p>
+	 * <p>Files are <code>prefix-kind.txt</code>: the number of tile rows
+	 * and columns, then the count of each tile, a row per line.</p>
+	 *
+	 * @param prefix path and start of the file names
+	 * @return files written
+	 * @throws IOException if a file can't be written
+	 */
+	File[] export(String prefix) throws IOException {
+		Kind[] kinds = Kind.values();
+		File[] files = new File[kinds.length];
+		long[] v = new long[tiles];
+		for (int k=0; k<kinds.length; k++) {
+			files[k] = new File(prefix+"-"+kinds[k]+".txt");
+			File dir = files[k].getAbsoluteFile().getParentFile();
+			if (dir != null) {
+				dir.mkdirs();
+			}
+			total(kinds[k], v);
+			try (PrintWriter out = new PrintWriter(files[k])) {
+				out.println(tilesY+" "+tilesX);
+				for (int ty=0; ty<tilesY; ty++) {
+					StringBuilder row = new StringBuilder();
+					for (int tx=0; tx<tilesX; tx++) {
+						if (tx > 0) {
+							row.append(' ');
+						}
+						row.append(v[tx*tilesY + ty]);
+					}
+					out.println(row);
+				}
+				if (out.checkError()) {
+					throw new IOException("Unable to write "+files[k]);
+				}
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,201 @@
+package flow;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <p>Headless check that simulating allocates nothing in steady state.</p>
+ * <p>Uses the per-thread allocation counters of
+ * <code>com.sun.management.ThreadMXBean</code>. Two checks, after a
+ * warm-up so the hot path is compiled:</p>
+ * <ul>
+ * <li>Traversals: {@link Simulation.Simulate#sweep} over every zone,
+ * run on this thread, must allocate nothing at all.</li>
+ * <li>Steps: the running {@link Simulation} threads, including the
+ * phaser and the work between steps, must allocate no more than
+ * {@link STEP_SLACK} bytes per thread per step. The <code>Phaser</code>
+ * allocates a small wait node whenever a thread has to block, so this
+ * is not zero, but it does not grow with the grid.</li>
+ * </ul>
+ * <p>Exits with status 1 if either check fails.</p>
+ * <p>Usage: <code>java flow.AllocCheck</code></p>
+ *
+ * @author avk
+ */
+public class AllocCheck {
+
+	// Test grid
+	final static int DIMX = 256;
+	final static int DIMY = 192;
+	final static int THREADS = 4;
+
+	// Steps
+	final static int WARMUP = 2000;
+	final static int MEASURE = 500;
+	final static int TRIES = 5; // Measurements to try, if zones move during one
+	final static long STEP_SLACK = 512; // bytes per thread per step
+
+	/**
+	 * <p>Runs both checks.</p>
+	 *
+	 * @param args none
+	 */
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean mx =
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!mx.isThreadAllocatedMemorySupported()) {
+			System.out.println("Thread allocation counters not supported by this JVM");
+			System.exit(1);
+		}
+		mx.setThreadAllocatedMemoryEnabled(true);
+
+		boolean ok = checkSweeps(mx);
+		ok &= checkSteps(mx);
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * <p>Sets up a simulation with water spread over a generated terrain.</p>
+	 *
+	 * @return simulation (threads not started)
+	 */
+	static Simulation setup() {
+		// Bowl with noise: water collects in the middle and crosses zones
+		Random rnd = new Random(1);
+		float[][] h = new float[DIMX][DIMY];
+		for (int x=0; x<DIMX; x++) {
+			for (int y=0; y<DIMY; y++) {
+				float dx = x-DIMX/2f, dy = y-DIMY/2f;
+				h[x][y] = (dx*dx+dy*dy)*0.001f + rnd.nextFloat()*0.5f;
+			}
+		}
+		Terrain t = new Terrain(h, THREADS);
+		Water w = new Water(t);
+		for (int i=0; i<40; i++) {
+			w.add(10+rnd.nextInt(DIMX-20), 10+rnd.nextInt(DIMY-20), 6, 4);
+		}
+		return new Simulation(t, w, THREADS);
+	}
+
+	/**
+	 * <p>Checks that traversing the grid allocates nothing.</p>
+	 *
+	 * @param mx thread bean
+	 * @return true if passed
+	 */
+	static boolean checkSweeps(com.sun.management.ThreadMXBean mx) {
+		Simulation sim = setup();
+		Simulation.Simulate[] s = new Simulation.Simulate[THREADS];
+		for (int i=0; i<THREADS; i++) {
+			s[i] = sim.new Simulate(i);
+		}
+
+		for (int step=0; step<WARMUP; step++) {
+			for (int i=0; i<THREADS; i++) {
+				s[i].sweep();
+			}
+		}
+
+		long updated = 0;
+		long before = mx.getCurrentThreadAllocatedBytes();
+		for (int step=0; step<MEASURE; step++) {
+			for (int i=0; i<THREADS; i++) {
+				updated += s[i].sweep();
+			}
+		}
+		long bytes = mx.getCurrentThreadAllocatedBytes()-before;
+
+		System.out.printf("Traversals: %d bytes allocated in %d steps (%d points updated)%n",
+				bytes, MEASURE, updated);
+		if (bytes != 0) {
+			System.out.println("FAIL: traversing the grid allocates");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * <p>Checks that whole steps on the simulation threads allocate no
+	 * more than {@link STEP_SLACK} bytes per thread.</p>
+	 *
+	 * @param mx thread bean
+	 * @return true if passed
+	 */
+	static boolean checkSteps(com.sun.management.ThreadMXBean mx) {
+		Simulation sim = setup();
+		sim.start();
+		sim.play();
+
+		try {
+			// Simulation threads, by name (see Simulation.start)
+			List<Thread> threads = new ArrayList<Thread>();
+			for (Thread th : Thread.getAllStackTraces().keySet()) {
+				if (th.getName().startsWith("Simulate-")) {
+					threads.add(th);
+				}
+			}
+			long[] ids = new long[threads.size()];
+			for (int i=0; i<ids.length; i++) {
+				ids[i] = threads.get(i).getId();
+			}
+
+			waitFor(sim, WARMUP);
+			for (int tries=0; tries<TRIES; tries++) {
+				int rebalances = sim.rebalancer.rebalances;
+				int first = sim.count.get();
+				long before = sum(mx.getThreadAllocatedBytes(ids));
+				waitFor(sim, first+MEASURE);
+				long bytes = sum(mx.getThreadAllocatedBytes(ids))-before;
+				int steps = sim.count.get()-first;
+
+				// Moving zones regenerates the permuted lists, which is not steady state
+				if (sim.rebalancer.rebalances != rebalances) { continue; }
+
+				double perStep = (double)bytes/steps/ids.length;
+				System.out.printf("Steps: %d bytes allocated in %d steps by %d threads (%.1f bytes/thread/step)%n",
+						bytes, steps, ids.length, perStep);
+				if (perStep > STEP_SLACK) {
+					System.out.println("FAIL: steps allocate more than "+STEP_SLACK+" bytes per thread");
+					return false;
+				}
+				return true;
+			}
+			System.out.println("FAIL: zones kept moving, no steady state to measure");
+			return false;
+		}
+		catch (InterruptedException e) {
+			System.out.println("FAIL: interrupted");
+			return false;
+		}
+		finally {
+			sim.end();
+		}
+	}
+
+	/**
+	 * <p>Waits until the simulation reaches a step.</p>
+	 *
+	 * @param sim simulation
+	 * @param step step to wait for
+	 * @throws InterruptedException if interrupted
+	 */
+	private static void waitFor(Simulation sim, int step) throws InterruptedException {
+		while (sim.count.get() < step) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * @param a values
+	 * @return sum of values
+	 */
+	private static long sum(long[] a) {
+		long s = 0;
+		for (long v : a) {
+			s += v;
+		}
+		return s;
+	}
+}
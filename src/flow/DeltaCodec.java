@@ -0,0 +1,211 @@
+package flow;
+
+/**
+ * <p>Compact encoding of the changes between two depth grids.</p>
+ * <p>Points are taken in linear order (<code>x*dimy + y</code>). The
+ * encoding is a list of runs, each written as varints: the number of
+ * unchanged points to skip, the number of changed points that follow,
+ * then the change in depth of each of those points (zigzag encoded, so
+ * small changes either way take one byte). The runs end where the data
+ * ends; trailing unchanged points are not written.</p>
+ * <p>A step only changes depths near water, mostly by one unit, so a
+ * step usually encodes to a small fraction of the 4 bytes per point of
+ * the raw grid. A keyframe is the same encoding taken against an empty
+ * grid.</p>
+ * <p>Used by {@link StreamServer} to send steps to remote viewers.</p>
+ *
+ * @author avk
+ */
+public class DeltaCodec {
+
+	int dimx, dimy;
+
+	/**
+	 * <p>Output of the last {@link encode} (first {@link len} bytes).
+	 * Grows as needed and is reused.</p>
+	 */
+	byte[] buf;
+	int len;
+
+	/**
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 */
+	DeltaCodec(int dimx, int dimy) {
+		this.dimx = dimx;
+		this.dimy = dimy;
+		buf = new byte[1024];
+	}
+
+	/**
+	 * <p>Encodes the changes from <code>base</code> to <code>cur</code>
+	 * into {@link buf}, and brings <code>base</code> up to date.</p>
+	 *
+	 * @param base depths the receiver has (updated to <code>cur</code>),
+	 * or null for a keyframe (changes from an empty grid)
+	 * @param cur current depths
+	 * @return number of bytes written (also in {@link len})
+	 */
+	int encode(int[][] base, int[][] cur) {
+		len = 0;
+		int skip = 0; // Unchanged points since the last run
+		int runStart = -1; // Position in buf of the current run's length
+		int runLen = 0; // Points in the current run
+		for (int x=0; x<dimx; x++) {
+			int[] b = base == null ? null : base[x], c = cur[x];
+			for (int y=0; y<dimy; y++) {
+				int delta = c[y] - (b == null ? 0 : b[y]);
+				if (delta == 0) {
+					if (runLen > 0) {
+						endRun(runStart, runLen);
+						runLen = 0;
+					}
+					skip++;
+					continue;
+				}
+				if (runLen == 0) {
+					putVarint(skip);
+					skip = 0;
+					ensure(5);
+					runStart = len;
+					len += 5; // Room for the run length, filled in at the end of the run
+				}
+				runLen++;
+				putVarint((delta << 1) ^ (delta >> 31));
+				if (b != null) {
+					b[y] = c[y];
+				}
+			}
+		}
+		if (runLen > 0) {
+			endRun(runStart, runLen);
+		}
+		return len;
+	}
+
+	/**
+	 * <p>Writes a run's length into the space left for it, closing the gap.</p>
+	 *
+	 * @param at position of the space (5 bytes)
+	 * @param runLen number of points in the run
+	 */
+	private void endRun(int at, int runLen) {
+		int n = varintSize(runLen);
+		System.arraycopy(buf, at+5, buf, at+n, len-at-5);
+		len -= 5-n;
+		for (int i=0; i<n; i++, runLen >>>= 7) {
+			buf[at+i] = (byte)(i < n-1 ? (runLen & 0x7F) | 0x80 : runLen);
+		}
+	}
+
+	/**
+	 * <p>Applies encoded changes to a grid.</p>
+	 *
+	 * @param data encoded changes
+	 * @param off start of encoded changes
+	 * @param length number of bytes
+	 * @param depth grid to change (clear it first for a keyframe)
+	 * @return number of points changed
+	 */
+	static int decode(byte[] data, int off, int length, int[][] depth) {
+		int dimy = depth[0].length;
+		int[] pos = {off};
+		int end = off+length;
+		int i = 0, changed = 0;
+		while (pos[0] < end) {
+			i += getVarint(data, pos);
+			int run = getVarint(data, pos);
+			for (int k=0; k<run; k++, i++) {
+				int z = getVarint(data, pos);
+				depth[i/dimy][i%dimy] += (z >>> 1) ^ -(z & 1);
+			}
+			changed += run;
+		}
+		return changed;
+	}
+
+	/**
+	 * <p>Applies encoded changes to the back buffers of some water.</p>
+	 * <p>Only the points that changed are written and recoloured, so
+	 * applying a frame costs its changes rather than the whole grid.</p>
+	 *
+	 * @param data encoded changes
+	 * @param off start of encoded changes
+	 * @param length number of bytes
+	 * @param water water to change (reset it first for a keyframe)
+	 * @return number of points changed
+	 */
+	static int decode(byte[] data, int off, int length, Water water) {
+		Depths depth = water.depth;
+		int dimy = depth.dimy;
+		int[] pos = {off};
+		int end = off+length;
+		int i = 0, changed = 0;
+		while (pos[0] < end) {
+			i += getVarint(data, pos);
+			int run = getVarint(data, pos);
+			for (int k=0; k<run; k++, i++) {
+				int z = getVarint(data, pos);
+				int x = i/dimy, y = i%dimy;
+				depth.put(x, y, depth.get(x, y) + ((z >>> 1) ^ -(z & 1)));
+				water.color(x, y);
+			}
+			changed += run;
+		}
+		return changed;
+	}
+
+	/**
+	 * <p>Appends an unsigned varint (7 bits per byte, low bits first).</p>
+	 * @param v value (treated as unsigned)
+	 */
+	private void putVarint(int v) {
+		ensure(5);
+		while ((v & ~0x7F) != 0) {
+			buf[len++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[len++] = (byte)v;
+	}
+
+	/**
+	 * <p>Grows {@link buf} if needed.</p>
+	 * @param n bytes about to be written
+	 */
+	private void ensure(int n) {
+		if (len+n > buf.length) {
+			buf = java.util.Arrays.copyOf(buf, Math.max(2*buf.length, len+n));
+		}
+	}
+
+	/**
+	 * @param v value (treated as unsigned)
+	 * @return bytes needed to write v as a varint
+	 */
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * <p>Reads an unsigned varint.</p>
+	 *
+	 * @param data encoded bytes
+	 * @param pos read position (advanced past the varint)
+	 * @return value
+	 */
+	private static int getVarint(byte[] data, int[] pos) {
+		int v = 0;
+		for (int shift=0; ; shift += 7) {
+			byte b = data[pos[0]++];
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+	}
+}
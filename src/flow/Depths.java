@@ -0,0 +1,373 @@
+package flow;
+
+import java.util.Arrays;
+
+/**
+ * <p>Grid of water depths, in units.</p>
+ * <p>Depths are small counts, so besides plain <code>int</code>s they can
+ * be stored in 16 or 8 bits per point, chosen when the {@link Water} is
+ * created (see {@link Water#depthBytes}). A large grid then takes half or
+ * a quarter of the memory, and a step reads that much less. Compact depths
+ * are unsigned and saturate at {@link max}: {@link Water} never moves
+ * water into a full point, and water added beyond it is clipped.</p>
+ * <p>Simulation threads lock this object (see {@link Water#flowS}), so
+ * it is swapped between front and back buffers rather than copied.</p>
+ * <p>Also keeps the total water in each tile of {@link STRIP} points down
+ * a column (see {@link tally}), so dry stretches of the grid can be
+ * passed over without reading every point, and regions summed without
+ * scanning them (see {@link WetIndex}). A tile is one column wide because
+ * every point in a column is written by the same threads, the same way
+ * (see {@link Terrain#onThreadBoundary}): each total, and each column's
+ * {@link dirty} flag, is then written by one thread, or only while holding
+ * the lock, just like the depths it adds up.</p>
+ *
+ * @author avk
+ */
+abstract class Depths {
+
+	final int dimx, dimy;
+
+	/**
+	 * <p>Deepest a point can be.</p>
+	 */
+	final int max;
+
+	// Tiles of water totals
+	final static int STRIP_SHIFT = 5;
+	final static int STRIP = 1<<STRIP_SHIFT; // Points per tile (down a column)
+	final int strips; // Tiles per column
+
+	/**
+	 * <p>Total water in each tile, numbered <code>x*strips + y/STRIP</code>.</p>
+	 */
+	final int[] sums;
+
+	/**
+	 * <p>Columns whose tile totals may have changed since {@link WetIndex#changed}
+	 * last looked at this grid.</p>
+	 */
+	final boolean[] dirty;
+
+	/**
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 * @param max deepest a point can be
+	 */
+	Depths(int dimx, int dimy, int max) {
+		this.dimx = dimx;
+		this.dimy = dimy;
+		this.max = max;
+		strips = (dimy+STRIP-1)>>STRIP_SHIFT;
+		sums = new int[dimx*strips];
+		dirty = new boolean[dimx];
+	}
+
+	/**
+	 * <p>Creates an empty grid.</p>
+	 *
+	 * @param bytes bytes per point: 4, 2 or 1
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 * @return grid of zeros
+	 */
+	static Depths create(int bytes, int dimx, int dimy) {
+		switch (bytes) {
+			case 2: return new Shorts(dimx, dimy);
+			case 1: return new Bytes(dimx, dimy);
+			default: return new Ints(dimx, dimy);
+		}
+	}
+
+	/**
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return depth at point
+	 */
+	abstract int get(int x, int y);
+
+	/**
+	 * <p>Sets the depth at a point (not clipped: callers keep it in [0, {@link max}]).</p>
+	 * <p>Leaves the tile totals alone: follow with {@link tally}, or use
+	 * {@link put}.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param d new depth
+	 */
+	abstract void set(int x, int y, int d);
+
+	/**
+	 * <p>Sets the depth at a point and keeps its tile's total.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param d new depth
+	 */
+	final void put(int x, int y, int d) {
+		tally(x, y, d - get(x, y));
+		set(x, y, d);
+	}
+
+	/**
+	 * <p>Adds a change in depth at a point to its tile's total, and marks
+	 * its column {@link dirty}.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param change units added (or removed, if negative)
+	 */
+	final void tally(int x, int y, int change) {
+		sums[x*strips + (y>>STRIP_SHIFT)] += change;
+		dirty[x] = true;
+	}
+
+	/**
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return true if there is no water anywhere in the point's tile
+	 */
+	final boolean dry(int x, int y) {
+		return sums[x*strips + (y>>STRIP_SHIFT)] == 0;
+	}
+
+	/**
+	 * @return total water on the grid, added up from the tiles
+	 */
+	long total() {
+		long t = 0;
+		for (int s : sums) {
+			t += s;
+		}
+		return t;
+	}
+
+	/**
+	 * @return bytes used per point
+	 */
+	abstract int bytesPerCell();
+
+	/**
+	 * <p>Copies columns, and their tile totals, from another grid of the same kind.</p>
+	 *
+	 * @param from grid to copy
+	 * @param x0 first column
+	 * @param x1 column after the last
+	 */
+	final void copyColumns(Depths from, int x0, int x1) {
+		copyCells(from, x0, x1);
+		System.arraycopy(from.sums, x0*strips, sums, x0*strips, (x1-x0)*strips);
+	}
+
+	/**
+	 * <p>Copies the depths of columns from another grid of the same kind.</p>
+	 *
+	 * @param from grid to copy
+	 * @param x0 first column
+	 * @param x1 column after the last
+	 */
+	abstract void copyCells(Depths from, int x0, int x1);
+
+	/**
+	 * <p>Sets zero depth everywhere.</p>
+	 */
+	final void clear() {
+		clearCells();
+		Arrays.fill(sums, 0);
+		Arrays.fill(dirty, true);
+	}
+
+	/**
+	 * <p>Sets every depth to zero (not the tile totals).</p>
+	 */
+	abstract void clearCells();
+
+	/**
+	 * <p>Copies the depths into an <code>int</code> grid (for encoders and
+	 * other code working on whole grids).</p>
+	 *
+	 * @param to grid of the same dimensions
+	 */
+	final void copyTo(int[][] to) {
+		copyTo(to, 0, dimx);
+	}
+
+	/**
+	 * <p>Copies the depths of some columns into an <code>int</code> grid.</p>
+	 *
+	 * @param to grid of the same dimensions
+	 * @param x0 first column
+	 * @param x1 column after the last
+	 */
+	void copyTo(int[][] to, int x0, int x1) {
+		for (int x=x0; x<x1; x++) {
+			int[] col = to[x];
+			for (int y=0; y<dimy; y++) {
+				col[y] = get(x, y);
+			}
+		}
+	}
+
+	/**
+	 * <p>Replaces the depths with those of an <code>int</code> grid,
+	 * clipping them to [0, {@link max}].</p>
+	 *
+	 * @param from grid of the same dimensions
+	 * @return units clipped off (0 unless points were deeper than {@link max})
+	 */
+	long copyFrom(int[][] from) {
+		long clipped = 0;
+		Arrays.fill(sums, 0);
+		Arrays.fill(dirty, true);
+		for (int x=0; x<dimx; x++) {
+			int[] col = from[x];
+			for (int y=0; y<dimy; y++) {
+				int d = col[y];
+				if (d > max) {
+					clipped += d-max;
+					d = max;
+				}
+				d = Math.max(d, 0);
+				set(x, y, d);
+				tally(x, y, d);
+			}
+		}
+		return clipped;
+	}
+
+	// =======
+	//  Kinds
+	// =======
+
+	/**
+	 * <p>32-bit depths.</p>
+	 */
+	final static class Ints extends Depths {
+		private final int[][] d;
+
+		Ints(int dimx, int dimy) {
+			super(dimx, dimy, Integer.MAX_VALUE);
+			d = new int[dimx][dimy];
+		}
+
+		@Override
+		int get(int x, int y) {
+			return d[x][y];
+		}
+
+		@Override
+		void set(int x, int y, int v) {
+			d[x][y] = v;
+		}
+
+		@Override
+		int bytesPerCell() {
+			return 4;
+		}
+
+		@Override
+		void copyCells(Depths from, int x0, int x1) {
+			int[][] f = ((Ints) from).d;
+			for (int x=x0; x<x1; x++) {
+				System.arraycopy(f[x], 0, d[x], 0, dimy);
+			}
+		}
+
+		@Override
+		void clearCells() {
+			for (int[] col : d) {
+				Arrays.fill(col, 0);
+			}
+		}
+
+		@Override
+		void copyTo(int[][] to, int x0, int x1) {
+			for (int x=x0; x<x1; x++) {
+				System.arraycopy(d[x], 0, to[x], 0, dimy);
+			}
+		}
+	}
+
+	/**
+	 * <p>Unsigned 16-bit depths (up to 65535).</p>
+	 */
+	final static class Shorts extends Depths {
+		private final char[][] d;
+
+		Shorts(int dimx, int dimy) {
+			super(dimx, dimy, Character.MAX_VALUE);
+			d = new char[dimx][dimy];
+		}
+
+		@Override
+		int get(int x, int y) {
+			return d[x][y];
+		}
+
+		@Override
+		void set(int x, int y, int v) {
+			d[x][y] = (char)v;
+		}
+
+		@Override
+		int bytesPerCell() {
+			return 2;
+		}
+
+		@Override
+		void copyCells(Depths from, int x0, int x1) {
+			char[][] f = ((Shorts) from).d;
+			for (int x=x0; x<x1; x++) {
+				System.arraycopy(f[x], 0, d[x], 0, dimy);
+			}
+		}
+
+		@Override
+		void clearCells() {
+			for (char[] col : d) {
+				Arrays.fill(col, (char)0);
+			}
+		}
+	}
+
+	/**
+	 * <p>Unsigned 8-bit depths (up to 255).</p>
+	 */
+	final static class Bytes extends Depths {
+		private final byte[][] d;
+
+		Bytes(int dimx, int dimy) {
+			super(dimx, dimy, 255);
+			d = new byte[dimx][dimy];
+		}
+
+		@Override
+		int get(int x, int y) {
+			return d[x][y] & 0xFF;
+		}
+
+		@Override
+		void set(int x, int y, int v) {
+			d[x][y] = (byte)v;
+		}
+
+		@Override
+		int bytesPerCell() {
+			return 1;
+		}
+
+		@Override
+		void copyCells(Depths from, int x0, int x1) {
+			byte[][] f = ((Bytes) from).d;
+			for (int x=x0; x<x1; x++) {
+				System.arraycopy(f[x], 0, d[x], 0, dimy);
+			}
+		}
+
+		@Override
+		void clearCells() {
+			for (byte[] col : d) {
+				Arrays.fill(col, (byte)0);
+			}
+		}
+	}
+}
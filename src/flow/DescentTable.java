@@ -0,0 +1,141 @@
+package flow;
+
+import java.util.stream.IntStream;
+
+/**
+ * <p>Precomputed neighbour ordering for every point on the terrain.</p>
+ * <p>The terrain never changes, so for each point the 8 neighbours can be
+ * sorted by terrain height once, when the terrain loads. Water can only
+ * flow to a neighbour whose surface is lower, and a neighbour's surface is
+ * never below its terrain, so {@link Water#findLowest} can check neighbours
+ * from lowest terrain up and stop at the first one whose terrain is
+ * already above the current minimum. On most points that is after one or
+ * two neighbours instead of eight.</p>
+ * <p>Also records the steepest descent direction of each point and whether
+ * it is a pit (no neighbour is lower), for code that follows water
+ * downhill over dry terrain. "Steepest descent" here means the neighbour
+ * with the lowest terrain (ties to the first in neighbour order): drops
+ * are not divided by distance, so a diagonal neighbour counts the same as
+ * an adjacent one, just as in {@link Water#findLowest}.</p>
+ * <p>Neighbours are numbered as in {@link Water#findLowest}: top to bottom,
+ * left to right, i.e. offsets {@link DX}, {@link DY}.</p>
+ *
+ * @author avk
+ */
+public class DescentTable {
+
+	// Neighbour offsets, in the order used by Water.findLowest
+	final static int[] DX = {-1,-1,-1, 0, 0, 1, 1, 1};
+	final static int[] DY = {-1, 0, 1,-1, 1,-1, 0, 1};
+
+	// Flag bits
+	final static int DIR_MASK = 0x7; // Steepest descent direction (lowest neighbour)
+	final static int PIT = 0x8; // No lower neighbour
+	final static int EDGE = 0x10; // On map boundary (no table entry)
+
+	int dimx, dimy;
+
+	/**
+	 * <p>Neighbours of each point, lowest terrain first, 4 bits each
+	 * (first neighbour in the lowest bits). Ties keep neighbour order.
+	 * Indexed by <code>x*dimy + y</code>.</p>
+	 */
+	int[] order;
+
+	/**
+	 * <p>Steepest descent direction and {@link PIT}/{@link EDGE} flags
+	 * of each point.</p>
+	 */
+	byte[] flags;
+
+	// Metrics
+	long buildNanos;
+	int pits;
+
+	/**
+	 * <p>Builds the table for a terrain (in parallel over columns).</p>
+	 *
+	 * @param height Terrain heights
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 */
+	DescentTable(float[][] height, int dimx, int dimy) {
+		long t0 = System.nanoTime();
+		this.dimx = dimx;
+		this.dimy = dimy;
+		order = new int[dimx*dimy];
+		flags = new byte[dimx*dimy];
+
+		IntStream.range(0, dimx).parallel().forEach(x -> {
+			int[] idx = new int[8];
+			float[] h = new float[8];
+
+			for (int y=0; y<dimy; y++) {
+				int p = x*dimy + y;
+				if (x==0 || y==0 || x==dimx-1 || y==dimy-1) {
+					flags[p] = EDGE;
+					continue;
+				}
+
+				// Insertion sort of 8 neighbours by height (stable)
+				for (int i=0; i<8; i++) {
+					float v = height[x+DX[i]][y+DY[i]];
+					int j = i;
+					while (j > 0 && h[j-1] > v) {
+						h[j] = h[j-1];
+						idx[j] = idx[j-1];
+						j--;
+					}
+					h[j] = v;
+					idx[j] = i;
+				}
+
+				int packed = 0;
+				for (int k=0; k<8; k++) {
+					packed |= idx[k] << (4*k);
+				}
+				order[p] = packed;
+				flags[p] = (byte)(h[0] < height[x][y] ? idx[0] : PIT);
+			}
+		});
+
+		int count = 0;
+		for (byte f : flags) {
+			if ((f & PIT) != 0) {
+				count++;
+			}
+		}
+		pits = count;
+		buildNanos = System.nanoTime()-t0;
+	}
+
+	/**
+	 * <p>Memory used by the table.</p>
+	 * @return bytes
+	 */
+	long bytes() {
+		return 5L*order.length;
+	}
+
+	/**
+	 * <p>Steepest descent direction of a point: its lowest neighbour (see
+	 * the class comment).</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return neighbour number, or -1 for pits and boundary points
+	 */
+	int descent(int x, int y) {
+		int f = flags[x*dimy + y];
+		return (f & (PIT|EDGE)) != 0 ? -1 : f & DIR_MASK;
+	}
+
+	/**
+	 * <p>Summary of table size and build time.</p>
+	 * @return one line of metrics
+	 */
+	String metrics() {
+		return String.format("Descent table: %d ms, %d kB (%.0f bytes/point), %d pits",
+				buildNanos/1000000, bytes()/1024, (double)bytes()/order.length, pits);
+	}
+}
@@ -0,0 +1,156 @@
+package flow;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Headless check that {@link Simulation#jacobi} mode is repeatable.</p>
+ * <p>Runs the same water on the same generated terrain for {@link STEPS}
+ * steps with 1 to {@link MAX_THREADS} threads, in unit and flux mode, and
+ * checks that every run ends with exactly the same depths as the run on
+ * one thread, and that water is conserved. Zones move as the
+ * {@link Rebalancer} sees fit, which differs from run to run. Water is
+ * also added part way through, between steps.</p>
+ * <p>Also checks that, with a {@link Terrain#seed}, a normal
+ * single-threaded run repeats.</p>
+ * <p>Exits with status 1 if any run differs.</p>
+ * <p>Usage: <code>java flow.DeterminismCheck</code></p>
+ *
+ * @author avk
+ */
+public class DeterminismCheck {
+
+	// Test grid
+	final static int DIMX = 160;
+	final static int DIMY = 120;
+	final static int MAX_THREADS = 8;
+
+	final static int STEPS = 300;
+	final static int DROP_AT = 100; // Step after which more water is added
+	final static long SEED = 42;
+	final static long TIMEOUT_MS = 30000;
+
+	/**
+	 * <p>Runs every check.</p>
+	 *
+	 * @param args none
+	 */
+	public static void main(String[] args) {
+		boolean ok = true;
+		for (boolean flux : new boolean[] {false, true}) {
+			int[][] first = null;
+			for (int n=1; n<=MAX_THREADS; n++) {
+				int[][] d = run(n, true, flux);
+				if (d == null) {
+					ok = false;
+					continue;
+				}
+				if (first == null) {
+					first = d;
+				}
+				boolean same = Arrays.deepEquals(first, d);
+				System.out.printf("%s Jacobi%s, %d threads: %d units, checksum %08x%n", same ? "ok  " : "FAIL",
+						flux ? " flux" : "", n, total(d), Arrays.deepHashCode(d));
+				ok &= same;
+			}
+		}
+
+		// Normal mode, seeded, on one thread
+		Terrain.seed = SEED;
+		int[][] a = run(1, false, false), b = run(1, false, false);
+		Terrain.seed = null;
+		boolean same = a != null && b != null && Arrays.deepEquals(a, b);
+		System.out.printf("%s seeded, 1 thread, twice%n", same ? "ok  " : "FAIL");
+		ok &= same;
+
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * <p>Runs the simulation for {@link STEPS} steps.</p>
+	 *
+	 * @param threads number of threads
+	 * @param jacobi whether to use {@link Simulation#jacobi} mode
+	 * @param flux whether to use {@link Water#flux} mode
+	 * @return depths after the last step, or null if the run failed
+	 */
+	static int[][] run(int threads, boolean jacobi, boolean flux) {
+		// Bowl with noise, the same every run
+		Random rnd = new Random(SEED);
+		float[][] h = new float[DIMX][DIMY];
+		for (int x=0; x<DIMX; x++) {
+			for (int y=0; y<DIMY; y++) {
+				float dx = x-DIMX/2f, dy = y-DIMY/2f;
+				h[x][y] = (dx*dx+dy*dy)*0.0005f + rnd.nextFloat()*0.3f;
+			}
+		}
+		Terrain t = new Terrain(h, threads);
+		Water w = new Water(t);
+		w.audit = true;
+		w.flux = flux;
+		for (int i=0; i<30; i++) {
+			w.add(5+rnd.nextInt(DIMX-10), 5+rnd.nextInt(DIMY-10), 1+rnd.nextInt(20), 3);
+		}
+		int dx = 5+rnd.nextInt(DIMX-10), dy = 5+rnd.nextInt(DIMY-10);
+
+		Simulation sim = new Simulation(t, w, threads);
+		sim.jacobi = jacobi;
+		w.swap(0); // Drops into the front buffers, as if added between steps
+		w.copyBack(0, 1);
+
+		int[][] result = new int[DIMX][DIMY];
+		long[] expected = new long[1]; // Water added less water run off, as of the last step
+		CountDownLatch done = new CountDownLatch(1);
+		sim.onStep = () -> {
+			int step = sim.count.get();
+			if (step == DROP_AT) {
+				sim.between(() -> w.add(dx, dy, 30, 4)); // Runs after the next step
+			}
+			if (step == STEPS) {
+				w.frontDepth.copyTo(result);
+				expected[0] = (long)w.waterAdded()-w.waterRemoved();
+				sim.pause();
+				done.countDown();
+			}
+		};
+		sim.start();
+		sim.play();
+
+		try {
+			if (!done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				System.out.println("FAIL: no step "+STEPS+" after "+TIMEOUT_MS+" ms");
+				return null;
+			}
+		}
+		catch (InterruptedException e) {
+			System.out.println("FAIL: interrupted");
+			return null;
+		}
+		finally {
+			sim.end();
+		}
+
+		if (total(result) != expected[0]) {
+			System.out.printf("FAIL: %d threads: %d units on grid, expected %d%n",
+					threads, total(result), expected[0]);
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * @param d depths
+	 * @return total water
+	 */
+	private static long total(int[][] d) {
+		long s = 0;
+		for (int[] col : d) {
+			for (int v : col) {
+				s += v;
+			}
+		}
+		return s;
+	}
+}
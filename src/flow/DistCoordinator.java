@@ -0,0 +1,275 @@
+package flow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * <p>Coordinator for a distributed (multi-process) simulation.</p>
+ * <p>The grid is split into bands of columns, one per {@link DistWorker}
+ * process, the same way {@link Terrain#genPermute} splits the grid between
+ * threads. Each worker keeps a copy of the column on either side of its band
+ * (the halo). The coordinator takes the place of the <code>CyclicBarrier</code>
+ * in {@link FlowPanel}: every step it tells all workers to traverse their
+ * band, then routes the water each worker moved into its halo over to the
+ * neighbour that owns it, and finally sends every worker its new halo
+ * columns.</p>
+ * <p>Workers are started as separate JVMs on this host and talk to the
+ * coordinator over TCP on the loopback interface.</p>
+ *
+ * @author avk
+ */
+public class DistCoordinator {
+
+	// Messages from coordinator to workers
+	final static int STEP = 1;
+	final static int STOP = 2;
+
+	final static int REPORT_EVERY = 100; // steps
+
+	int n; // Number of workers
+	int dimx, dimy; // Grid dimensions
+	int[] lo; // First column of each band (lo[n] == dimx)
+
+	private Socket[] socks;
+	private DataInputStream[] in;
+	private DataOutputStream[] out;
+	private Process[] procs;
+
+	// Reused every step: water moved into each band's halos, each band's
+	// edge columns, and a column of zeros for the map edges
+	private int[][] outL, outR, first, last;
+	private int[] none;
+
+	/**
+	 * <p>Splits the terrain into bands.</p>
+	 *
+	 * @param terrain Terrain to simulate on
+	 * @param workers Number of worker processes
+	 */
+	DistCoordinator(Terrain terrain, int workers) {
+		n = workers;
+		dimx = terrain.dimx();
+		dimy = terrain.dimy();
+
+		lo = new int[n+1];
+		for (int k=0; k<=n; k++) {
+			lo[k] = k*dimx/n;
+		}
+
+		socks = new Socket[n];
+		in = new DataInputStream[n];
+		out = new DataOutputStream[n];
+		procs = new Process[n];
+
+		outL = new int[n][dimy];
+		outR = new int[n][dimy];
+		first = new int[n][dimy];
+		last = new int[n][dimy];
+		none = new int[dimy];
+	}
+
+	/**
+	 * <p>Starts worker processes and sends each its band of the grid.</p>
+	 *
+	 * @param terrain Terrain to simulate on
+	 * @param depth Initial water depths
+	 * @throws IOException if a worker cannot be started or reached
+	 */
+	void start(Terrain terrain, int[][] depth) throws IOException {
+		try (ServerSocket server = new ServerSocket(0, n, InetAddress.getLoopbackAddress())) {
+			String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+			for (int k=0; k<n; k++) {
+				procs[k] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						"flow.DistWorker", String.valueOf(server.getLocalPort()), String.valueOf(k))
+						.inheritIO().start();
+			}
+
+			// Workers may connect in any order, so they say who they are first
+			for (int i=0; i<n; i++) {
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				DataInputStream din = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+				int k = din.readInt();
+				socks[k] = s;
+				in[k] = din;
+				out[k] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			}
+		}
+
+		for (int k=0; k<n; k++) {
+			// Band plus halo columns (where they exist)
+			int a = Math.max(lo[k]-1, 0), b = Math.min(lo[k+1], dimx-1);
+			out[k].writeInt(dimx);
+			out[k].writeInt(dimy);
+			out[k].writeInt(lo[k]);
+			out[k].writeInt(lo[k+1]);
+			for (int x=a; x<=b; x++) {
+				for (int y=0; y<dimy; y++) {
+					out[k].writeFloat(terrain.height(x, y));
+				}
+				writeInts(out[k], depth[x]);
+			}
+			out[k].flush();
+		}
+	}
+
+	/**
+	 * <p>Runs one step on all workers and exchanges boundaries.</p>
+	 *
+	 * @param stats filled with {water on grid, water run off} totals
+	 * @throws IOException if a worker connection fails
+	 */
+	void step(long[] stats) throws IOException {
+		// Traverse bands
+		for (int k=0; k<n; k++) {
+			out[k].writeInt(STEP);
+			out[k].flush();
+		}
+
+		// Collect water moved into halos
+		stats[0] = stats[1] = 0;
+		for (int k=0; k<n; k++) {
+			readInts(in[k], outL[k]);
+			readInts(in[k], outR[k]);
+			stats[0] += in[k].readLong();
+			stats[1] += in[k].readLong();
+		}
+
+		// Hand it to the owners: k-1's right halo is k's first column, etc.
+		for (int k=0; k<n; k++) {
+			writeInts(out[k], k > 0 ? outR[k-1] : none);
+			writeInts(out[k], k < n-1 ? outL[k+1] : none);
+			out[k].flush();
+		}
+		for (int k=0; k<n; k++) {
+			stats[0] += sum(k > 0 ? outR[k-1] : null) + sum(k < n-1 ? outL[k+1] : null);
+		}
+
+		// Collect edge columns and send them back as halos
+		for (int k=0; k<n; k++) {
+			readInts(in[k], first[k]);
+			readInts(in[k], last[k]);
+		}
+		for (int k=0; k<n; k++) {
+			writeInts(out[k], k > 0 ? last[k-1] : none);
+			writeInts(out[k], k < n-1 ? first[k+1] : none);
+			out[k].flush();
+		}
+	}
+
+	/**
+	 * <p>Stops workers and waits for them to exit.</p>
+	 *
+	 * @throws IOException if a worker connection fails
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void stop() throws IOException, InterruptedException {
+		for (int k=0; k<n; k++) {
+			out[k].writeInt(STOP);
+			out[k].flush();
+		}
+		for (int k=0; k<n; k++) {
+			procs[k].waitFor();
+			socks[k].close();
+		}
+	}
+
+	private static long sum(int[] a) {
+		long s = 0;
+		if (a != null) {
+			for (int v : a) {
+				s += v;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * <p>Writes an int array to a stream.</p>
+	 *
+	 * @param o stream
+	 * @param a array (length known to both sides)
+	 * @throws IOException if the write fails
+	 */
+	static void writeInts(DataOutputStream o, int[] a) throws IOException {
+		for (int v : a) {
+			o.writeInt(v);
+		}
+	}
+
+	/**
+	 * <p>Reads an int array from a stream.</p>
+	 *
+	 * @param i stream
+	 * @param a array to fill (length known to both sides)
+	 * @throws IOException if the read fails
+	 */
+	static void readInts(DataInputStream i, int[] a) throws IOException {
+		for (int j=0; j<a.length; j++) {
+			a[j] = i.readInt();
+		}
+	}
+
+	/**
+	 * <p>Runs a distributed simulation headless.</p>
+	 * <p>Usage: <code>java flow.DistCoordinator datafile workers steps [x,y ...]</code>.
+	 * Each <code>x,y</code> adds a drop of water; if none are given one drop
+	 * is added at the center.</p>
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		if(args.length < 3) {
+			System.out.println("Usage: java flow.DistCoordinator datafile workers steps [x,y ...]");
+			System.exit(0);
+		}
+		int workers = Integer.parseInt(args[1]);
+		int steps = Integer.parseInt(args[2]);
+
+		Terrain terrain = new Terrain(args[0], workers);
+		Water water = new Water(terrain);
+		if (args.length > 3) {
+			for (int i=3; i<args.length; i++) {
+				String[] p = args[i].split(",");
+				water.add(Integer.parseInt(p[0]), Integer.parseInt(p[1]),
+						FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+			}
+		}
+		else {
+			water.add(terrain.dimx()/2, terrain.dimy()/2, FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+		}
+
+		try {
+			DistCoordinator c = new DistCoordinator(terrain, workers);
+			int[][] depth = new int[terrain.dimx()][terrain.dimy()];
+			water.depth.copyTo(depth);
+			c.start(terrain, depth);
+
+			long[] stats = new long[2];
+			long last = System.nanoTime();
+			for (int s=1; s<=steps; s++) {
+				c.step(stats);
+
+				if (s%REPORT_EVERY == 0 || s == steps) {
+					long now = System.nanoTime();
+					System.out.printf("step %d: %.1f steps/s, water %d (run off %d)%n", s,
+							(s%REPORT_EVERY == 0 ? REPORT_EVERY : s%REPORT_EVERY)/((now-last)/1e9),
+							stats[0], stats[1]);
+					last = now;
+				}
+			}
+			c.stop();
+		}
+		catch (IOException | InterruptedException e) {
+			System.out.println("Distributed simulation failed");
+			e.printStackTrace();
+		}
+	}
+}
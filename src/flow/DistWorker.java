@@ -0,0 +1,212 @@
+package flow;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>Worker process for a distributed simulation.</p>
+ * <p>Owns one band of columns of the grid (see {@link DistCoordinator}),
+ * plus a read-only copy of the column on either side. Each step it traverses
+ * its band in permuted order, using the same rule as {@link Water#update}
+ * in unit mode, built from the same parts ({@link Water#surface},
+ * {@link Water#lower}, neighbours numbered as in {@link DescentTable}).
+ * Water that moves into a halo column is counted and handed to the
+ * coordinator, which passes it on to the owner of that column.</p>
+ *
+ * @author avk
+ */
+public class DistWorker {
+
+	int dimx, dimy; // Whole grid dimensions
+	int lo, hi; // Owned columns [lo, hi)
+	int a; // Global column of local column 0
+
+	float[][] height; // Local heights, band plus halo
+	int[][] depth; // Local depths, band plus halo
+	int[] perm; // Permuted owned cells (local linear index)
+
+	int[] outL, outR; // Water moved into left/right halo this step
+	int[] col; // Column read from the coordinator (reused)
+	long removed; // Water run off the edge (whole run)
+
+	/**
+	 * <p>Reads this worker's band from the coordinator.</p>
+	 *
+	 * @param in stream from coordinator
+	 * @throws IOException if the read fails
+	 */
+	DistWorker(DataInputStream in) throws IOException {
+		dimx = in.readInt();
+		dimy = in.readInt();
+		lo = in.readInt();
+		hi = in.readInt();
+
+		a = Math.max(lo-1, 0);
+		int w = Math.min(hi, dimx-1) - a + 1;
+		height = new float[w][dimy];
+		depth = new int[w][dimy];
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<dimy; y++) {
+				height[x][y] = in.readFloat();
+			}
+			DistCoordinator.readInts(in, depth[x]);
+		}
+
+		outL = new int[dimy];
+		outR = new int[dimy];
+		col = new int[dimy];
+
+		// Owned columns are contiguous, so their cells are too
+		perm = new int[(hi-lo)*dimy];
+		for (int i=0; i<perm.length; i++) {
+			perm[i] = (lo-a)*dimy + i;
+		}
+		Terrain.shuffle(perm, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * <p>Traverses the band once.</p>
+	 */
+	void step() {
+		Arrays.fill(outL, 0);
+		Arrays.fill(outR, 0);
+
+		for (int p : perm) {
+			int x = p/dimy, y = p%dimy, gx = a+x;
+
+			if (gx==0 || y==0 || gx==dimx-1 || y==dimy-1) {
+				// Run off edge
+				removed += depth[x][y];
+				depth[x][y] = 0;
+			}
+			else {
+				update(x, y);
+			}
+		}
+	}
+
+	/**
+	 * <p>Moves water to the lowest neighbouring point.</p>
+	 *
+	 * @param x local x-coordinate of point
+	 * @param y y-coordinate of point
+	 */
+	void update(int x, int y) {
+		if (depth[x][y] == 0) { return; }
+
+		// set initial min to surface of current point
+		float min = Water.surface(height[x][y], depth[x][y]);
+		int idxMin = -1;
+		for (int i=0; i<8; i++) {
+			int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+			float s = Water.surface(height[nx][ny], depth[nx][ny]);
+			if (Water.lower(s, i, min, idxMin)) {
+				min = s;
+				idxMin = i;
+			}
+		}
+
+		if (idxMin < 0) { return; } // no water flow
+		int nx = x+DescentTable.DX[idxMin], ny = y+DescentTable.DY[idxMin];
+		depth[x][y]--; // water out
+		depth[nx][ny]++; // water in
+
+		// Into a halo: belongs to a neighbour now
+		if (a+nx < lo) {
+			outL[ny]++;
+		}
+		else if (a+nx >= hi) {
+			outR[ny]++;
+		}
+	}
+
+	/**
+	 * <p>Total water in owned columns.</p>
+	 * @return water units
+	 */
+	long waterCount() {
+		long c = 0;
+		for (int x=lo-a; x<hi-a; x++) {
+			for (int y=0; y<dimy; y++) {
+				c += depth[x][y];
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * <p>Exchanges boundaries with the coordinator after a step.</p>
+	 *
+	 * @param in stream from coordinator
+	 * @param out stream to coordinator
+	 * @throws IOException if the connection fails
+	 */
+	void exchange(DataInputStream in, DataOutputStream out) throws IOException {
+		// Water moved into halos
+		DistCoordinator.writeInts(out, outL);
+		DistCoordinator.writeInts(out, outR);
+		out.writeLong(waterCount());
+		out.writeLong(removed);
+		out.flush();
+
+		// Water moved into our edge columns by neighbours
+		DistCoordinator.readInts(in, col);
+		for (int y=0; y<dimy; y++) {
+			depth[lo-a][y] += col[y];
+		}
+		DistCoordinator.readInts(in, col);
+		for (int y=0; y<dimy; y++) {
+			depth[hi-1-a][y] += col[y];
+		}
+
+		// Edge columns out, halo columns in
+		DistCoordinator.writeInts(out, depth[lo-a]);
+		DistCoordinator.writeInts(out, depth[hi-1-a]);
+		out.flush();
+		DistCoordinator.readInts(in, col);
+		if (lo > 0) {
+			System.arraycopy(col, 0, depth[0], 0, dimy);
+		}
+		DistCoordinator.readInts(in, col);
+		if (hi < dimx) {
+			System.arraycopy(col, 0, depth[hi-a], 0, dimy);
+		}
+	}
+
+	/**
+	 * <p>Connects to the coordinator and runs steps until told to stop.</p>
+	 * <p>Started by {@link DistCoordinator}; usage:
+	 * <code>java flow.DistWorker port rank</code>.</p>
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		int port = Integer.parseInt(args[0]);
+		int rank = Integer.parseInt(args[1]);
+
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			out.writeInt(rank);
+			out.flush();
+
+			DistWorker w = new DistWorker(in);
+			while (in.readInt() == DistCoordinator.STEP) {
+				w.step();
+				w.exchange(in, out);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Worker "+rank+" lost connection to coordinator");
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package flow;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * <p>Headless comparison of the depth and height encodings.</p>
+ * <p>For each combination of depth size ({@link Water#depthBytes}) and
+ * height quantization ({@link Terrain#height16}), sweeps a large
+ * generated terrain on one thread (as {@link AllocCheck} does) and prints
+ * the memory the grids take per point and the time per step. Each
+ * combination runs in its own JVM, so none is compiled for another's
+ * depth grid.</p>
+ * <p>Usage: <code>java flow.EncodingBench [depthBytes height16]</code>
+ * (with no arguments, runs every combination)</p>
+ *
+ * @author avk
+ */
+public class EncodingBench {
+
+	// Test grid (large enough that the grids don't fit in cache)
+	final static int DIMX = 1024;
+	final static int DIMY = 1024;
+	final static int THREADS = 4; // Zones, all swept on one thread
+
+	// Steps
+	final static int WARMUP = 200;
+	final static int MEASURE = 300;
+
+	/**
+	 * <p>Runs one combination, or all of them in turn.</p>
+	 *
+	 * @param args [depthBytes height16]
+	 */
+	public static void main(String[] args) {
+		if (args.length == 2) {
+			Water.depthBytes = Integer.parseInt(args[0]);
+			Terrain.height16 = Boolean.parseBoolean(args[1]);
+			run();
+			return;
+		}
+
+		String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		for (boolean h16 : new boolean[] {false, true}) {
+			for (int bytes : new int[] {4, 2, 1}) {
+				try {
+					int status = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+							"flow.EncodingBench", String.valueOf(bytes), String.valueOf(h16))
+							.inheritIO().start().waitFor();
+					if (status != 0) {
+						System.exit(status);
+					}
+				}
+				catch (java.io.IOException e) {
+					System.out.println("Unable to start benchmark");
+					e.printStackTrace();
+					System.exit(1);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Sweeps the grid with the current encoding and prints the results.</p>
+	 */
+	static void run() {
+		// Bowl with noise, with pools dropped all over it
+		Random rnd = new Random(1);
+		float[][] h = new float[DIMX][DIMY];
+		for (int x=0; x<DIMX; x++) {
+			for (int y=0; y<DIMY; y++) {
+				float dx = x-DIMX/2f, dy = y-DIMY/2f;
+				h[x][y] = (dx*dx+dy*dy)*0.0001f + rnd.nextFloat()*0.5f;
+			}
+		}
+		Terrain t = new Terrain(h, THREADS);
+		Water w = new Water(t);
+		for (int i=0; i<400; i++) {
+			w.add(20+rnd.nextInt(DIMX-40), 20+rnd.nextInt(DIMY-40), 8, 10);
+		}
+		int before = w.waterCount();
+
+		Simulation sim = new Simulation(t, w, THREADS);
+		Simulation.Simulate[] s = new Simulation.Simulate[THREADS];
+		for (int i=0; i<THREADS; i++) {
+			s[i] = sim.new Simulate(i);
+		}
+		for (int step=0; step<WARMUP; step++) {
+			for (int i=0; i<THREADS; i++) {
+				s[i].sweep();
+			}
+		}
+		long t0 = System.nanoTime();
+		for (int step=0; step<MEASURE; step++) {
+			for (int i=0; i<THREADS; i++) {
+				s[i].sweep();
+			}
+		}
+		double ms = (System.nanoTime()-t0)/1e6/MEASURE;
+
+		// Front and back depth grids, and the heights
+		int cell = 2*w.depth.bytesPerCell() + t.heightBytes();
+		System.out.printf("depth %d bytes, height %d bytes: %2d bytes/point (%5.1f MB), %6.2f ms/step (%5.1f steps/s), %d of %d units left, %d clipped%n",
+				w.depth.bytesPerCell(), t.heightBytes(), cell, (double)cell*t.dim()/(1<<20),
+				ms, 1000/ms, w.waterCount(), before, w.clipped);
+	}
+}
@@ -0,0 +1,428 @@
+package flow;
+
+/**
+ * <p>Computes where water ends up, without stepping.</p>
+ * <p>Uses a priority-flood from the map boundary over the terrain heights.
+ * This gives every point its spill level: the lowest surface level at
+ * which water there can run off the edge (water on the boundary runs off,
+ * as in {@link Water#updateEdge}). Points whose spill level is above their
+ * terrain are in a depression; connected points with the same spill level
+ * form one basin, which holds water up to that level and spills over at
+ * the point it was flooded from.</p>
+ * <p>To settle the water, every unit is followed downhill (along the
+ * {@link DescentTable} steepest descent) into the basin it drains to, or
+ * off the edge. Each basin is then filled to a flat surface; if it holds
+ * more than it can take, the excess follows the flood path from its spill
+ * point to the next basin downstream, or off the edge. Basins are filled
+ * upstream first so excess water is always passed on before the basin it
+ * lands in is filled.</p>
+ * <p>Sub-basins inside a basin are treated as one pool, so a basin that is
+ * only partly filled has a single level across it. Otherwise this is the
+ * state that stepping converges to, up to the one unit (0.01 height) that
+ * neighbouring surfaces can differ by.</p>
+ * <p>The flood only depends on the terrain, so it is done once, when the
+ * object is created, and reused by {@link settle}.</p>
+ *
+ * @author avk
+ */
+public class Equilibrium {
+
+	Terrain terrain;
+	int dimx, dimy;
+
+	// Priority-flood results, indexed x*dimy + y
+	private float[] level; // Spill level
+	private int[] parent; // Point flooded from (towards edge), -1 on boundary
+	private int[] popped; // Order points were flooded in
+
+	// Basins
+	private int[] basin; // Basin of each point, -1 if not in a depression
+	private int nBasins;
+	private int[] basinStart; // Points of basin b are cells[basinStart[b]..basinStart[b+1])
+	private int[] cells;
+	private int[] outlet; // Point each basin spills over to
+	private long[] capacity; // Units each basin holds at its spill level
+	private int[] upstream; // Basins, latest flooded (upstream) first
+
+	// Metrics
+	long floodNanos;
+	long settleNanos;
+
+	/**
+	 * <p>Floods the terrain from the boundary and finds basins.</p>
+	 *
+	 * @param t Terrain
+	 */
+	Equilibrium(Terrain t) {
+		long t0 = System.nanoTime();
+		terrain = t;
+		dimx = t.dimx();
+		dimy = t.dimy();
+		flood();
+		findBasins();
+		floodNanos = System.nanoTime()-t0;
+	}
+
+	/**
+	 * <p>Priority-flood from the boundary inwards.</p>
+	 * <p>Points are taken lowest level first. A neighbour that is lower than
+	 * the current level can only drain through here, so it gets this
+	 * level as its spill level.</p>
+	 */
+	private void flood() {
+		int dim = dimx*dimy;
+		level = new float[dim];
+		parent = new int[dim];
+		popped = new int[dim];
+		boolean[] seen = new boolean[dim];
+		LongHeap queue = new LongHeap(2*(dimx+dimy));
+
+		for (int x=0; x<dimx; x++) {
+			for (int y=0; y<dimy; y++) {
+				if (x==0 || y==0 || x==dimx-1 || y==dimy-1) {
+					int p = x*dimy + y;
+					level[p] = terrain.height(x, y);
+					parent[p] = -1;
+					seen[p] = true;
+					queue.push(key(level[p], p));
+				}
+			}
+		}
+
+		int k = 0;
+		while (!queue.isEmpty()) {
+			int p = (int) queue.pop();
+			popped[p] = k++;
+			int x = p/dimy, y = p%dimy;
+
+			for (int i=0; i<8; i++) {
+				int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+				if (nx < 0 || ny < 0 || nx >= dimx || ny >= dimy) { continue; }
+				int q = nx*dimy + ny;
+				if (seen[q]) { continue; }
+
+				seen[q] = true;
+				level[q] = Math.max(terrain.height(nx, ny), level[p]);
+				parent[q] = p;
+				queue.push(key(level[q], q));
+			}
+		}
+	}
+
+	/**
+	 * <p>Groups depression points into basins and works out how much
+	 * each holds.</p>
+	 */
+	private void findBasins() {
+		int dim = dimx*dimy;
+		basin = new int[dim];
+		java.util.Arrays.fill(basin, -1);
+
+		// Label connected points with the same spill level
+		int[] stack = new int[dim];
+		int[] first = new int[dim]; // First flooded point of each basin
+		nBasins = 0;
+		for (int p=0; p<dim; p++) {
+			if (basin[p] >= 0 || !inDepression(p)) { continue; }
+
+			int b = nBasins++;
+			int top = 0;
+			stack[top++] = p;
+			basin[p] = b;
+			first[b] = p;
+			while (top > 0) {
+				int c = stack[--top];
+				if (popped[c] < popped[first[b]]) {
+					first[b] = c;
+				}
+				int x = c/dimy, y = c%dimy;
+				for (int i=0; i<8; i++) {
+					int q = (x+DescentTable.DX[i])*dimy + y+DescentTable.DY[i];
+					if (basin[q] < 0 && inDepression(q) && level[q] == level[c]) {
+						basin[q] = b;
+						stack[top++] = q;
+					}
+				}
+			}
+		}
+
+		// Points of each basin, grouped (counting sort)
+		basinStart = new int[nBasins+1];
+		for (int p=0; p<dim; p++) {
+			if (basin[p] >= 0) {
+				basinStart[basin[p]+1]++;
+			}
+		}
+		for (int b=0; b<nBasins; b++) {
+			basinStart[b+1] += basinStart[b];
+		}
+		cells = new int[basinStart[nBasins]];
+		int[] fill = java.util.Arrays.copyOf(basinStart, nBasins);
+		capacity = new long[nBasins];
+		for (int p=0; p<dim; p++) {
+			int b = basin[p];
+			if (b >= 0) {
+				cells[fill[b]++] = p;
+				capacity[b] += units(level[p], terrain.height(p/dimy, p%dimy));
+			}
+		}
+
+		// Spill points, and upstream-first order
+		outlet = new int[nBasins];
+		Integer[] ord = new Integer[nBasins];
+		for (int b=0; b<nBasins; b++) {
+			outlet[b] = parent[first[b]];
+			ord[b] = b;
+		}
+		java.util.Arrays.sort(ord, (a,c) -> Integer.compare(popped[first[c]], popped[first[a]]));
+		upstream = new int[nBasins];
+		for (int b=0; b<nBasins; b++) {
+			upstream[b] = ord[b];
+		}
+	}
+
+	/**
+	 * <p>Whether a point is below its spill level.</p>
+	 */
+	private boolean inDepression(int p) {
+		return level[p] > terrain.height(p/dimy, p%dimy);
+	}
+
+	/**
+	 * <p>Units of water a point holds before its surface passes a level.</p>
+	 *
+	 * @param lvl surface level
+	 * @param h terrain height
+	 * @return units (0 if terrain is above level)
+	 */
+	private static int units(double lvl, float h) {
+		return Math.max(0, (int)Math.floor((lvl - h)*100 + 1e-6));
+	}
+
+	/**
+	 * <p>Number of basins found.</p>
+	 * @return basin count
+	 */
+	int basins() {
+		return nBasins;
+	}
+
+	/**
+	 * <p>Replaces the water with its steady state.</p>
+	 * <p>Water on the grid is conserved, apart from what runs off the edge.</p>
+	 *
+	 * @param depth Water depths (changed in place)
+	 * @return Number of units that ran off the edge
+	 */
+	long settle(int[][] depth) {
+		long t0 = System.nanoTime();
+		int dim = dimx*dimy;
+		long[] volume = new long[nBasins];
+		long lost = 0;
+
+		// Where each point drains to (basin, or -1 off the edge)
+		int[] sink = new int[dim];
+		java.util.Arrays.fill(sink, -2);
+		int[] path = new int[dim];
+
+		for (int x=0; x<dimx; x++) {
+			for (int y=0; y<dimy; y++) {
+				if (depth[x][y] == 0) { continue; }
+				int b = drain(x*dimy + y, sink, path);
+				if (b < 0) {
+					lost += depth[x][y];
+				}
+				else {
+					volume[b] += depth[x][y];
+				}
+				depth[x][y] = 0;
+			}
+		}
+
+		// Fill basins, passing excess downstream
+		for (int b : upstream) {
+			if (volume[b] == 0) { continue; }
+
+			if (volume[b] > capacity[b]) {
+				for (int i=basinStart[b]; i<basinStart[b+1]; i++) {
+					int p = cells[i];
+					depth[p/dimy][p%dimy] = units(level[p], terrain.height(p/dimy, p%dimy));
+				}
+				long excess = volume[b] - capacity[b];
+				int next = spill(outlet[b]);
+				if (next < 0) {
+					lost += excess;
+				}
+				else {
+					volume[next] += excess;
+				}
+			}
+			else {
+				fill(b, volume[b], depth);
+			}
+		}
+
+		settleNanos = System.nanoTime()-t0;
+		return lost;
+	}
+
+	/**
+	 * <p>Follows a point downhill to the basin it drains to.</p>
+	 * <p>Takes the steepest descent where there is one, or the flood path
+	 * (towards the edge) on flats. Results are cached in <code>sink</code>
+	 * for every point on the way.</p>
+	 *
+	 * @param p starting point
+	 * @param sink cached results (-2 for unknown)
+	 * @param path scratch space
+	 * @return basin, or -1 if the water runs off the edge
+	 */
+	private int drain(int p, int[] sink, int[] path) {
+		int len = 0;
+		int c = p;
+		int result;
+		while (true) {
+			if (sink[c] != -2) {
+				result = sink[c];
+				break;
+			}
+			int x = c/dimy, y = c%dimy;
+			if (x==0 || y==0 || x==dimx-1 || y==dimy-1) {
+				result = -1;
+				break;
+			}
+			if (basin[c] >= 0) {
+				result = basin[c];
+				break;
+			}
+			path[len++] = c;
+			int d = terrain.descent.descent(x, y);
+			c = d < 0 ? parent[c] : (x+DescentTable.DX[d])*dimy + y+DescentTable.DY[d];
+		}
+		for (int i=0; i<len; i++) {
+			sink[path[i]] = result;
+		}
+		return result;
+	}
+
+	/**
+	 * <p>Follows the flood path from a spill point to the next basin
+	 * downstream.</p>
+	 * <p>The flood path only passes points flooded earlier, so the basin
+	 * found has not been filled yet.</p>
+	 *
+	 * @param p spill point
+	 * @return basin, or -1 if the path reaches the edge
+	 */
+	private int spill(int p) {
+		while (p >= 0) {
+			if (basin[p] >= 0) {
+				return basin[p];
+			}
+			p = parent[p];
+		}
+		return -1;
+	}
+
+	/**
+	 * <p>Fills a basin with less water than its capacity, to a flat surface.</p>
+	 *
+	 * @param b basin
+	 * @param v units of water
+	 * @param depth Water depths
+	 */
+	private void fill(int b, long v, int[][] depth) {
+		int n = basinStart[b+1]-basinStart[b];
+		long[] byHeight = new long[n];
+		for (int i=0; i<n; i++) {
+			int p = cells[basinStart[b]+i];
+			byHeight[i] = key(terrain.height(p/dimy, p%dimy), p);
+		}
+		java.util.Arrays.sort(byHeight);
+
+		// Level covering the lowest k points: L = (v/100 + sum h)/k, while below the next point
+		double sum = 0, lvl = 0;
+		int k = 0;
+		while (k < n) {
+			sum += height((int) byHeight[k]);
+			k++;
+			lvl = (v/100.0 + sum)/k;
+			if (k == n || lvl <= height((int) byHeight[k])) { break; }
+		}
+
+		long placed = 0;
+		for (int i=0; i<k; i++) {
+			int p = (int) byHeight[i];
+			int d = (int)Math.min(units(lvl, height(p)), v - placed);
+			depth[p/dimy][p%dimy] = d;
+			placed += d;
+		}
+		// Rounding leftovers go to the lowest points
+		for (int i=0; placed < v; i = (i+1)%k) {
+			int p = (int) byHeight[i];
+			depth[p/dimy][p%dimy]++;
+			placed++;
+		}
+	}
+
+	private float height(int p) {
+		return terrain.height(p/dimy, p%dimy);
+	}
+
+	/**
+	 * <p>Sort key: orders by height, then by point.</p>
+	 *
+	 * @param h height (any float)
+	 * @param p point
+	 * @return key that sorts as (h, p)
+	 */
+	private static long key(float h, int p) {
+		int bits = Float.floatToIntBits(h);
+		bits ^= (bits >> 31) & 0x7fffffff; // Negative floats sort in reverse as ints
+		return ((long)bits << 32) | (p & 0xffffffffL);
+	}
+
+	/**
+	 * <p>Minimum heap of longs (avoids boxing a queue entry per point).</p>
+	 */
+	private static class LongHeap {
+		private long[] a;
+		private int size;
+
+		LongHeap(int capacity) {
+			a = new long[Math.max(capacity, 16)];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		void push(long v) {
+			if (size == a.length) {
+				a = java.util.Arrays.copyOf(a, 2*a.length);
+			}
+			int i = size++;
+			while (i > 0 && a[(i-1)/2] > v) {
+				a[i] = a[(i-1)/2];
+				i = (i-1)/2;
+			}
+			a[i] = v;
+		}
+
+		long pop() {
+			long top = a[0];
+			long v = a[--size];
+			int i = 0;
+			while (true) {
+				int c = 2*i+1;
+				if (c >= size) { break; }
+				if (c+1 < size && a[c+1] < a[c]) { c++; }
+				if (a[c] >= v) { break; }
+				a[i] = a[c];
+				i = c;
+			}
+			a[i] = v;
+			return top;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package flow;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <p>Java Flight Recorder events for the phases of the simulation.</p>
+ * <p>Lets a flight recording line up GC pauses and lock contention with
+ * what the simulation was doing: each thread's traversal in a step, time
+ * waiting at the phaser, painting, loading the terrain and writing
+ * recordings. Events show up under "Flow" in JDK Mission Control, e.g.
+ * after running with
+ * <code>-XX:StartFlightRecording=filename=flow.jfr</code>.</p>
+ * <p>Callers check the event type's <code>isEnabled()</code> (e.g.
+ * {@link STEP}) before creating an event, so when no recording is
+ * running the cost is one check and nothing is allocated.</p>
+ *
+ * @author avk
+ */
+public class Events {
+
+	// Event types, to check whether a recording wants them
+	final static EventType STEP = EventType.getEventType(Step.class);
+	final static EventType WAIT = EventType.getEventType(Wait.class);
+	final static EventType PAINT = EventType.getEventType(Paint.class);
+	final static EventType READ = EventType.getEventType(Read.class);
+	final static EventType IMAGE = EventType.getEventType(Image.class);
+	final static EventType WRITE = EventType.getEventType(Write.class);
+
+	private Events() {}
+
+	/**
+	 * <p>One thread's traversal of its zone in one step.</p>
+	 */
+	@Name("flow.Step")
+	@Label("Simulation Step")
+	@Category({"Flow", "Simulation"})
+	@Description("One thread traversing its zone of the grid for one step")
+	@StackTrace(false) // Frequent, and always from the same place
+	static class Step extends Event {
+		@Label("Thread Number")
+		int thread;
+
+		@Label("Step")
+		int step;
+
+		@Label("Points Visited")
+		int visited;
+
+		@Label("Points Updated")
+		@Description("Points where water moved or ran off")
+		int updated;
+
+		@Label("First Column")
+		int from;
+
+		@Label("End Column")
+		int to;
+	}
+
+	/**
+	 * <p>A thread waiting for the others at the phaser.</p>
+	 */
+	@Name("flow.PhaserWait")
+	@Label("Phaser Wait")
+	@Category({"Flow", "Simulation"})
+	@Description("A simulation thread waiting at the phaser for the other threads")
+	@StackTrace(false) // Frequent, and always from the same place
+	static class Wait extends Event {
+		@Label("Thread Number")
+		int thread;
+
+		@Label("Phase")
+		@Description("Phase the thread just finished: copy, sweep or idle")
+		String phase;
+	}
+
+	/**
+	 * <p>One call to {@link FlowPanel#paintComponent}.</p>
+	 */
+	@Name("flow.Paint")
+	@Label("Paint")
+	@Category({"Flow", "Rendering"})
+	@StackTrace(false) // Frequent, and always from the same place
+	static class Paint extends Event {
+		@Label("Step")
+		int step;
+	}
+
+	/**
+	 * <p>Reading a batch of terrain rows from file.</p>
+	 */
+	@Name("flow.TerrainRead")
+	@Label("Terrain Read")
+	@Category({"Flow", "Loading"})
+	static class Read extends Event {
+		@Label("File")
+		String file;
+
+		@Label("First Row")
+		int first;
+
+		@Label("Rows")
+		int rows;
+	}
+
+	/**
+	 * <p>Deriving the terrain image from the heights.</p>
+	 */
+	@Name("flow.TerrainImage")
+	@Label("Terrain Image")
+	@Category({"Flow", "Loading"})
+	static class Image extends Event {
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Label("Hillshade")
+		boolean hillshade;
+	}
+
+	/**
+	 * <p>Writing output to disk (recorded frames).</p>
+	 */
+	@Name("flow.Write")
+	@Label("Write")
+	@Category({"Flow", "I/O"})
+	static class Write extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Bytes Written")
+		@DataAmount
+		long bytes;
+	}
+}
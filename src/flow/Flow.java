@@ -4,7 +4,11 @@ import javax.swing.*;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.BorderLayout;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 
 /**
  * <p>GUI handler.</p>
@@ -27,6 +31,9 @@ public class Flow {
 	// FlowPanel -- controller
 	static FlowPanel fp;
 
+	// How often the history slider follows the simulation (ms)
+	final static int HISTORY_MS = 200;
+
 	/**
 	 * <p>Set up the application GUI.</p>
 	 * <p>Components of the GUI are a frame, with a panel for {@link FlowPanel}
@@ -93,6 +100,83 @@ public class Flow {
 			}
 		});
 
+		// "Settle" jumps to where the water would end up
+		JButton settleB = new JButton("Settle");
+		settleB.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				fp.settle();
+			}
+		});
+
+		// "Record" starts/stops recording in the selected format
+		JComboBox<Recorder.Format> formatC = new JComboBox<Recorder.Format>(Recorder.Format.values());
+		formatC.setMaximumSize(formatC.getPreferredSize());
+		JButton recordB = new JButton("Record");
+		recordB.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				if (!fp.recording()) {
+					fp.startRecording((Recorder.Format) formatC.getSelectedItem());
+					recordB.setText("Stop recording");
+					formatC.setEnabled(false);
+				}
+				else {
+					fp.stopRecording();
+					recordB.setText("Record");
+					formatC.setEnabled(true);
+				}
+			}
+		});
+
+		// "Heatmap" shows where the work is done, "Export" writes it out (with -activity)
+		JComboBox<String> heatC = new JComboBox<String>();
+		heatC.addItem("No heatmap");
+		for (Activity.Kind k : Activity.Kind.values()) {
+			heatC.addItem(k.toString());
+		}
+		heatC.setMaximumSize(heatC.getPreferredSize());
+		heatC.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				int i = heatC.getSelectedIndex();
+				fp.showActivity(i == 0 ? null : Activity.Kind.values()[i-1]);
+			}
+		});
+		JButton exportB = new JButton("Export");
+		exportB.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				fp.exportActivity();
+			}
+		});
+
+		// "History" slider scrubs back through kept steps (pauses); steps
+		// are only kept from the first time it is clicked
+		JSlider historyS = new JSlider(0, 0, 0);
+		historyS.setToolTipText("Click to keep steps, then drag to rewind; Play replays from there");
+		historyS.addMouseListener(new MouseAdapter() {
+			public void mousePressed(MouseEvent e) {
+				fp.startHistory();
+			}
+		});
+		boolean[] updating = {false}; // Set while the slider follows the simulation
+		historyS.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				if (!updating[0] && historyS.getValue() != fp.step()) {
+					fp.rewind(historyS.getValue());
+				}
+			}
+		});
+		// Follow the kept range and current step, except while being dragged
+		new Timer(HISTORY_MS, new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				int[] range = fp.historyRange();
+				if (range == null || historyS.getValueIsAdjusting()) { return; }
+				updating[0] = true;
+				historyS.setMinimum(range[0]);
+				historyS.setMaximum(Math.max(range[1], fp.step()));
+				historyS.setValue(fp.step());
+				updating[0] = false;
+			}
+		}).start();
+
 		// ==============
 		//  Button panel
 		// ==============
@@ -106,15 +190,28 @@ public class Flow {
 		b.add(Box.createRigidArea(new Dimension(10,0)));
 		b.add(playB);
 		b.add(Box.createRigidArea(new Dimension(10,0)));
+		b.add(settleB);
+		b.add(Box.createRigidArea(new Dimension(10,0)));
 		b.add(endB);
+		b.add(Box.createRigidArea(new Dimension(10,0)));
+		b.add(recordB);
+		b.add(Box.createRigidArea(new Dimension(5,0)));
+		b.add(formatC);
+		if (FlowPanel.activity) {
+			b.add(Box.createRigidArea(new Dimension(10,0)));
+			b.add(heatC);
+			b.add(Box.createRigidArea(new Dimension(5,0)));
+			b.add(exportB);
+		}
 		// https://docs.oracle.com/javase/tutorial/uiswing/layout/box.html#filler
 
 		g.add(b);
+		g.add(historyS);
 
 		// =============
 		//  Frame setup
 		// =============
-		frame.setSize(frameX, frameY+50); // Extra space at the bottom for buttons
+		frame.setSize(frameX, frameY+90); // Extra space at the bottom for buttons and slider
 		frame.setLocationRelativeTo(null);  // Center window on screen
 		frame.add(g); // Add components
 		frame.setContentPane(g);
@@ -123,18 +220,60 @@ public class Flow {
 
 	/**
 	 * <p>Main method: read input file and invoke GUI.</p>
+	 * <p>Options (before the file):<br>
+	 * <code>-hillshade</code> shade the terrain by slope<br>
+	 * <code>-depth16</code>, <code>-depth8</code> store depths in 16 or 8 bits<br>
+	 * <code>-height16</code> quantize heights to 16 bits<br>
+	 * <code>-flux</code> move as much water per update as levels the surfaces<br>
+	 * <code>-jacobi</code> repeatable steps, whatever the thread count<br>
+	 * <code>-seed n</code> seed the traversal order<br>
+	 * <code>-activity</code> count where the work is done, for a heatmap</p>
 	 * 
-	 * @param args Filepath to terrain data file
+	 * @param args Options, then filepath to terrain data file
 	 */
 	public static void main(String[] args) {
+		int a = 0;
+		while (a < args.length-1 && args[a].startsWith("-")) {
+			if (args[a].equals("-hillshade")) {
+				Terrain.hillshade = true;
+			}
+			else if (args[a].equals("-depth16")) {
+				Water.depthBytes = 2;
+			}
+			else if (args[a].equals("-depth8")) {
+				Water.depthBytes = 1;
+			}
+			else if (args[a].equals("-height16")) {
+				Terrain.height16 = true;
+			}
+			else if (args[a].equals("-flux")) {
+				FlowPanel.flux = true;
+			}
+			else if (args[a].equals("-jacobi")) {
+				FlowPanel.jacobi = true;
+			}
+			else if (args[a].equals("-activity")) {
+				FlowPanel.activity = true;
+			}
+			else if (args[a].equals("-seed") && a < args.length-2) {
+				Terrain.seed = Long.parseLong(args[++a]);
+			}
+			else {
+				System.out.println("Unknown option "+args[a]);
+				System.exit(0);
+			}
+			a++;
+		}
+
 		// Check that number of command line arguments is correct
-		if(args.length != 1) {
-			System.out.println("Incorrect number of command line arguments. Should have form: java -jar flow.java intputfilename");
+		if(args.length-a != 1) {
+			System.out.println("Incorrect number of command line arguments. Should have form: java -jar flow.java [-hillshade] [-depth16|-depth8] [-height16] [-flux] [-jacobi] [-seed n] [-activity] intputfilename");
 			System.exit(0);
 		}
 
 		// Execute in event dispatch thread
-		SwingUtilities.invokeLater( () -> setupGUI(args[0]) );
+		String dataFile = args[a];
+		SwingUtilities.invokeLater( () -> setupGUI(dataFile) );
 	}
 
 }
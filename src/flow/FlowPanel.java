@@ -3,19 +3,22 @@ package flow;
 import java.awt.FlowLayout;
 import java.awt.Graphics;
 import java.awt.Color;
+import java.awt.image.BufferedImage;
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseAdapter;
-import java.util.concurrent.BrokenBarrierException;
-import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * <p>Panel that manages the simulation.</p>
  * <p>This is a Controller class (of the MVC design pattern).
- * It determines what data is displayed and how it is displayed.</p>
+ * It determines what data is displayed and how it is displayed.
+ * The simulation threads themselves are run by {@link Simulation}.</p>
  * @author avk
  */
 public class FlowPanel extends JPanel{
@@ -40,15 +43,21 @@ public class FlowPanel extends JPanel{
 	final static int NUM_THREADS = 4;
 	final static int DROP_DEPTH = 2;
 	final static int DROP_SIZE = 3;
+	final static int LOAD_ROWS = 32; // Rows read between repaints while loading
+
+	// Options
+	static boolean flux = false; // Move water in flux mode (see Water#flux)
+	static boolean jacobi = false; // Repeatable steps (see Simulation#jacobi)
+	static boolean activity = false; // Count where the work is done (see Activity)
 
 	// Count
-	AtomicInteger count;
 	JLabel countL;
 
 	// Threading
-	CyclicBarrier barrier;
-	volatile boolean paused;
-	volatile boolean ended;
+	Simulation sim;
+
+	// Heatmap drawn over the water (null for none)
+	volatile Activity.Kind heat;
 
 	// =============
 	//  Constructor
@@ -57,8 +66,10 @@ public class FlowPanel extends JPanel{
 	/**
 	 * <p>Initializes data, counter, threads, and mouse listener.</p>
 	 * <p>Creates a label for counter and sets its properties.<br>
-	 * Sets a cyclic barrier for the {@link Simulate} threads, defines
-	 * actions to be taken when tripped.<br>
+	 * Reads the terrain dimensions and starts loading the rest in the
+	 * background (see {@link load}).<br>
+	 * Sets up the {@link Simulation}, and what to do after each step
+	 * (update counter, repaint).<br>
 	 * Defines actions for mouse click (Add water).</p>
 	 * 
 	 * @param dataFile Path to file containing terrain data
@@ -68,64 +79,127 @@ public class FlowPanel extends JPanel{
 		// =========
 		//  Counter
 		// =========
-		// Determines where count label will be
-		this.setLayout(new FlowLayout(FlowLayout.RIGHT));
-		// Label and properties
-		countL = new JLabel("0",10);
-		countL.setOpaque(true);
-		countL.setBackground(Color.lightGray);
-		countL.setBorder(BorderFactory.createEmptyBorder(1,2,1,2));
-		this.add(countL);
-		// Initialize counter
-		count = new AtomicInteger(0);
+		addCounter();
 
 		// ===================
 		//  Terrain and Water
 		// ===================
-		terrain = new Terrain(dataFile, NUM_THREADS);
+		// Only the dimensions for now, heights are loaded in the background
+		terrain = new Terrain(dataFile, NUM_THREADS, true);
 		water = new Water(terrain);
+		water.flux = flux;
 
 		// =========
 		//  Threads
 		// =========
 
-		// Set initial ended and paused states
-		ended = false;
-		paused = true;
-
-		// Set up a cyclic barrier
-		/* This defines the number of threads required to trip barrier
-		 * and what actions should be taken by the last thread to trip
-		 * the barrier (lambda expression is for Runnable interface)
+		/* Run by the last thread to finish each step. The front buffers are
+		 * frozen until the next step, so painting them no longer races the
+		 * simulation threads.
 		 */
-		barrier = new CyclicBarrier(NUM_THREADS, () -> {
-			if(!paused) {
-				count.getAndIncrement();
-				countL.setText(String.valueOf(count.get()));
-			}
-		});
-
-		// Create and start threads
-		for(int s=0; s<NUM_THREADS; s++) {
-			Thread temp =  new Thread(new Simulate(s));
-			temp.start();
+		sim = new Simulation(terrain, water, NUM_THREADS);
+		sim.jacobi = jacobi;
+		if (activity) {
+			sim.activity = new Activity(terrain.dimx(), terrain.dimy(), NUM_THREADS);
 		}
+		sim.onStep = () -> {
+			countL.setText(String.valueOf(sim.count.get()));
+			repaint();
+		};
+		sim.history = new History(sim, History.BUDGET);
+
+		// Threads are started once the terrain has loaded
+		Thread loader = new Thread(this::load, "Loader");
+		loader.setDaemon(true);
+		loader.start();
 
 		// ================
 		//  Mouse listener
 		// ================
 		addMouseListener(new MouseAdapter() { 
 			public void mouseClicked(MouseEvent me) { 
-				try {
-					// Add water where user clicks
-					water.add(me.getX(), me.getY(), DROP_DEPTH, DROP_SIZE);
-					repaint();
-				}
-				catch(ArrayIndexOutOfBoundsException err) {} // Off map, do nothing
+				// Add water where user clicks (between steps)
+				sim.between(() -> {
+					try {
+						water.add(me.getX(), me.getY(), DROP_DEPTH, DROP_SIZE);
+					}
+					catch(ArrayIndexOutOfBoundsException err) {} // Off map, do nothing
+				});
 			}
 		});
 	}
 
+	/**
+	 * <p>Initializes a panel in remote mode, showing a simulation that
+	 * runs elsewhere.</p>
+	 * <p>No simulation threads are started: the water is filled in by a
+	 * {@link StreamViewer}, which calls {@link showRemote} after each
+	 * frame. The controls have no effect.</p>
+	 * 
+	 * @param t Terrain received from the server
+	 * @param w Water to show
+	 */
+	FlowPanel (Terrain t, Water w) {
+		addCounter();
+		terrain = t;
+		water = w;
+
+		// Never started, only holds the step count and what to do on a step
+		sim = new Simulation(terrain, water, 1);
+		sim.onStep = () -> {
+			countL.setText(String.valueOf(sim.count.get()));
+			repaint();
+		};
+	}
+
+	/**
+	 * <p>Creates a label for counter and sets its properties.</p>
+	 */
+	private void addCounter() {
+		// Determines where count label will be
+		this.setLayout(new FlowLayout(FlowLayout.RIGHT));
+		// Label and properties
+		countL = new JLabel("0",10);
+		countL.setOpaque(true);
+		countL.setBackground(Color.lightGray);
+		countL.setBorder(BorderFactory.createEmptyBorder(1,2,1,2));
+		this.add(countL);
+	}
+
+	/**
+	 * <p>Shows a step received from a server (remote mode).</p>
+	 * <p>Call after putting the water in the front buffers.</p>
+	 * 
+	 * @param step step number
+	 */
+	void showRemote(int step) {
+		sim.count.set(step);
+		sim.onStep.run();
+	}
+
+	/**
+	 * <p>Loads the terrain, then starts the simulation.</p>
+	 * <p>Runs in the background so the window can show the terrain as it is
+	 * read, with progress in the counter label. Controls work while
+	 * loading: water added and play/pause take effect once the simulation
+	 * threads start.</p>
+	 */
+	private void load() {
+		while (!terrain.readRows(LOAD_ROWS)) {
+			countL.setText("Loading "+(int)(100*terrain.progress())+"%");
+			repaint();
+		}
+		countL.setText("Preparing");
+		repaint();
+
+		terrain.finish();
+		System.out.println(terrain.startupMetrics());
+
+		countL.setText(String.valueOf(sim.count.get()));
+		repaint();
+		sim.start();
+	}
+
 	// ============
 	//  Frame dims
 	// ============
@@ -161,6 +235,11 @@ public class FlowPanel extends JPanel{
 	 */
 	@Override
 	protected void paintComponent(Graphics g) {
+		Events.Paint e = null;
+		if (Events.PAINT.isEnabled()) {
+			e = new Events.Paint();
+			e.begin();
+		}
 		super.paintComponent(g);
 
 		// draw landscape (grayscale)
@@ -168,12 +247,85 @@ public class FlowPanel extends JPanel{
 			g.drawImage(terrain.getImage(), 0, 0, null);
 		}
 
-		// draw water
-		if (water.getImage() != null){
-			g.drawImage(water.getImage(), 0, 0, null);
+		// draw water (front buffer, can't be swapped while drawing)
+		synchronized (water.frame) {
+			if (water.getImage() != null){
+				paintWet(g, water.getImage(), water.frontDepth);
+			}
+		}
+
+		// heatmap, a pixel per tile scaled up to the tiles' size
+		Activity a = sim.activity;
+		Activity.Kind k = heat;
+		if (a != null && k != null) {
+			g.drawImage(a.image(k), 0, 0, a.tilesX*Activity.TILE, a.tilesY*Activity.TILE, null);
+		}
+
+		if (e != null) {
+			e.step = sim.count.get();
+			e.commit();
 		}
 	}
 
+	/**
+	 * <p>Draws the parts of the water image that have water.</p>
+	 * <p>Finds bands of columns with water from the tile totals (see
+	 * {@link Depths#dry}), and draws each band only between its highest
+	 * and lowest wet tiles. Dry columns less than a tile apart are drawn
+	 * with the band, so scattered points don't make many small draws.</p>
+	 * 
+	 * @param g Panel's graphics object
+	 * @param img water image
+	 * @param d depths the image shows
+	 */
+	private static void paintWet(Graphics g, BufferedImage img, Depths d) {
+		int x0 = -1, last = -1; // First and last wet columns of the current band
+		int top = 0, bottom = 0; // Its highest and lowest wet tiles
+		for (int x=0; x<d.dimx; x++) {
+			int lo = -1, hi = -1;
+			for (int s=0; s<d.strips; s++) {
+				if (d.sums[x*d.strips + s] != 0) {
+					if (lo < 0) { lo = s; }
+					hi = s;
+				}
+			}
+			if (hi < 0) { continue; } // dry column
+
+			if (x0 >= 0 && x-last <= Depths.STRIP) {
+				// Extend the band
+				top = Math.min(top, lo);
+				bottom = Math.max(bottom, hi);
+				last = x;
+				continue;
+			}
+			if (x0 >= 0) {
+				paintBand(g, img, d, x0, last, top, bottom);
+			}
+			x0 = last = x;
+			top = lo;
+			bottom = hi;
+		}
+		if (x0 >= 0) {
+			paintBand(g, img, d, x0, last, top, bottom);
+		}
+	}
+
+	/**
+	 * <p>Draws a band of the water image.</p>
+	 * 
+	 * @param g Panel's graphics object
+	 * @param img water image
+	 * @param d depths the image shows
+	 * @param x0 first column
+	 * @param x1 last column
+	 * @param s0 first tile down the columns
+	 * @param s1 last tile
+	 */
+	private static void paintBand(Graphics g, BufferedImage img, Depths d, int x0, int x1, int s0, int s1) {
+		int y0 = s0*Depths.STRIP, y1 = Math.min((s1+1)*Depths.STRIP, d.dimy);
+		g.drawImage(img, x0, y0, x1+1, y1, x0, y0, x1+1, y1, null);
+	}
+
 	/**
 	 * <p>Paints count label.</p>
 	 * 
@@ -193,7 +345,7 @@ public class FlowPanel extends JPanel{
 	 * <p>Sets <code>paused</code> to false.</p>
 	 */
 	void play() {
-		paused = false;
+		sim.play();
 	}
 
 	/**
@@ -201,17 +353,17 @@ public class FlowPanel extends JPanel{
 	 * <p>Sets <code>paused</code> to true.</p>
 	 */
 	void pause() {
-		paused = true;
-
-		/* Water conservation testing    |
-		 * Uncomment for debugging       v
-		 */
-		//System.out.println("+------------------------------------------------+");
-		//System.out.println(" water added: "+water.waterAdded());
-		//System.out.println(" water removed: "+water.waterRemoved());
-		//System.out.println(" (water added) - (water removed): " + (water.waterAdded()-water.waterRemoved()));
-		//System.out.println(" water count: "+water.waterCount());
-		//System.out.println("+------------------------------------------------+");
+		sim.pause();
+
+		// Water conservation testing (see Water.audit)
+		if (water.audit) {
+			System.out.println("+------------------------------------------------+");
+			System.out.println(" water added: "+water.waterAdded());
+			System.out.println(" water removed: "+water.waterRemoved());
+			System.out.println(" (water added) - (water removed): " + (water.waterAdded()-water.waterRemoved()));
+			System.out.println(" water count: "+water.waterCount());
+			System.out.println("+------------------------------------------------+");
+		}
 	}
 
 	/**
@@ -220,145 +372,131 @@ public class FlowPanel extends JPanel{
 	 * resets counter to zero.</p>
 	 */
 	void reset() {
-		paused = true;
-		water.reset();
-		count.set(0);
-		countL.setText(String.valueOf(count.get()));
-		repaint();
+		sim.reset();
+	}
+
+	/**
+	 * <p>Jumps to where the water would settle.</p>
+	 */
+	void settle() {
+		sim.settle();
 	}
 
 	/**
 	 * <p>Ends simulation.</p>
-	 * <p>Sets <code>ended</code> to true.</p>
+	 * <p>Sets <code>ended</code> to true, and finishes any recording.</p>
 	 */
 	void end() {
-		ended = true;
+		sim.end();
+		stopRecording();
+		History h = sim.history;
+		if (h != null) {
+			h.stop();
+			System.out.println(h.metrics());
+		}
 	}
 
 	/**
-	 * <p>Simulation engine.</p>
-	 * <p>Runnable class that is instantiated by {@link FlowPanel} 
-	 * as Threads to traverse the grid and simulate the flow of the 
-	 * water over the terrain. When a thread completes one iteration
-	 * (one traversal of it's section of the grid) it trips the 
-	 * cyclic barrier, so threads are synchronized at each 
-	 * traversal.</p>
-	 * <p>This is a Controller class (of the MVC design pattern).
-	 * It handles the data and makes decisions on what to do and
-	 * when to do it.</p>
+	 * <p>Goes back (or forward) to a kept step, paused.</p>
 	 * 
-	 * @author avk
+	 * @param step step to go to
 	 */
-	class Simulate implements Runnable {
-
-		int tNum; // Thread number [0, NUM_THREADS)
-		int[] coords; // Coords of current point
+	void rewind(int step) {
+		sim.rewind(step);
+	}
 
-		/**
-		 * <p><code>Simulate</code> constructor.</p>
-		 * @param t Thread number (0,1,...)
-		 */
-		Simulate (int t) {
-			tNum = t;
-			coords = new int[2];
+	/**
+	 * <p>Starts keeping past steps, from the current one, for rewinding
+	 * (see {@link History}). Nothing is kept until then.</p>
+	 */
+	void startHistory() {
+		History h = sim.history;
+		if (h != null) {
+			h.start();
 		}
+	}
 
-		/**
-		 * <p>Traverses grid updating water depths.</p>
-		 */
-		@Override
-		public void run() {
-
-			while (!ended) { // Loop until simulation is ended
-
-				if (paused) { // Just spin if paused
-					continue;
-				}
-
-				// Loop over a quarter of the grid (assuming 4 threads)
-				for(int i=0; i<terrain.subLen(); i++) {
-					// Get coords of point to consider
-					terrain.getPermute(tNum, i, coords);
-
-					if(onMapBoundary()) {
-						// Run off edge
-						if(onThreadBoundary()) {
-							water.updateEdgeS(coords[0], coords[1]);
-						}
-						else {
-							water.updateEdge(coords[0], coords[1]);
-						}
-						repaint();
-						
-						/* Yield time on processor to other threads.
-						 * Increases interleaving, so more chance of race condition.
-						 * Uncomment for debugging.
-						 */
-						//Thread.yield();
-					}
+	/**
+	 * <p>Range of steps that can be rewound to.</p>
+	 * @return earliest and latest kept steps, or null if none are kept
+	 */
+	int[] historyRange() {
+		History h = sim.history;
+		if (h == null || h.firstStep() < 0) { return null; }
+		return new int[] {h.firstStep(), h.lastStep()};
+	}
 
-					else if(onThreadBoundary()) {
-						// Check & transfer water with mutual exclusion
-						water.updateS(coords[0], coords[1]);
-						repaint();
-						
-						/* Yield time on processor to other threads.
-						 * Increases interleaving, so more chance of race condition.
-						 * Uncomment for debugging.
-						 */
-						//Thread.yield();
-					}
+	/**
+	 * <p>Accessor for the step counter.</p>
+	 * @return current step
+	 */
+	int step() {
+		return sim.count.get();
+	}
 
-					else {
-						// Check & transfer water (no mutual exclusion)
-						water.update(coords[0], coords[1]);
-						repaint();
-						
-						/* Yield time on processor to other threads.
-						 * Increases interleaving, so more chance of race condition.
-						 * Uncomment for debugging.
-						 */
-						//Thread.yield();
-					}
-				}
+	/**
+	 * <p>Shows a heatmap of where the work is done over the water.</p>
+	 * 
+	 * @param k what to show, or null for no heatmap
+	 */
+	void showActivity(Activity.Kind k) {
+		heat = k;
+		repaint();
+	}
 
-				try {
-					barrier.await(); // Trip barrier
-				}
-				catch(InterruptedException | BrokenBarrierException err) {
-					System.out.println("Error at cyclic barrier");
-					err.printStackTrace();
-				}
+	/**
+	 * <p>Writes the activity counts to time-stamped grid files under
+	 * <code>activity</code>.</p>
+	 */
+	void exportActivity() {
+		Activity a = sim.activity;
+		if (a == null) { return; }
+
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		try {
+			for (File f : a.export(new File("activity", stamp).getPath())) {
+				System.out.println("Wrote "+f);
 			}
 		}
-
-		/**
-		 * <p>Determines if point is on the boundary of the map.</p>
-		 * @return true if point is on boundary, false otherwise
-		 */
-		boolean onMapBoundary() {
-			// Min and max values of x and y
-			return coords[0]==0 || coords[1]==0 ||
-					coords[0]==terrain.dimx()-1 || coords[1]==terrain.dimy()-1;
+		catch (IOException e) {
+			System.out.println("Unable to export activity");
+			e.printStackTrace();
 		}
+	}
 
-		/**
-		 * <p>Determines if point is in region on boundary of thread zones</p>
-		 * <p>I.e. if point is in a region where multiple threads will be accessing it.</p>
-		 * @return true if point is in boundary region, false otherwise
-		 */
-		boolean onThreadBoundary() {
-			/* bound is the last row of the grid that the thread is responsible for.
-			 * This and the rows above and below it are accessed by multiple threads, 
-			 * so there needs to be mutual exclusion on that data.
-			 * 
-			 * Calculation of bound:
-			 * grid.dim()/NUM_THREADS divides grid into NUM_THREADS zones. Multiplying
-			 * by (tNum+1) selects the end of this thread's zone. %grid.dimy() gets the 
-			 * row number.
-			 */
-			int bound = ((tNum+1)*terrain.dim()/NUM_THREADS)%terrain.dimy();
-			return coords[1]==bound || coords[1]==bound-1 || coords[1]==bound+1;
+	/**
+	 * <p>Starts recording the simulation.</p>
+	 * <p>Frames are written to a new time-stamped directory under
+	 * <code>recordings</code>.</p>
+	 * 
+	 * @param format Output format
+	 */
+	void startRecording(Recorder.Format format) {
+		if (sim.recorder != null) { return; }
+
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		Recorder r = new Recorder(new File("recordings", stamp), Recorder.EVERY,
+				Recorder.CAPACITY, Recorder.Policy.DROP_OLDEST, format);
+		r.start();
+		sim.recorder = r;
+	}
+
+	/**
+	 * <p>Whether the simulation is being recorded.</p>
+	 * @return true if recording
+	 */
+	boolean recording() {
+		return sim.recorder != null;
+	}
+
+	/**
+	 * <p>Stops recording the simulation (if recording).</p>
+	 */
+	void stopRecording() {
+		Recorder r = sim.recorder;
+		sim.recorder = null;
+		if (r != null) {
+			r.stop();
 		}
-	} // End of Simulate class
+	}
 }
\ No newline at end of file
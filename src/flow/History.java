@@ -0,0 +1,231 @@
+package flow;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Bounded history of past steps, for rewinding and replaying.</p>
+ * <p>A background thread takes a {@link Snapshot} of the water after each
+ * step (or change while paused), and stores the changes since the last
+ * step it stored, encoded by {@link DeltaCodec}. Every {@link KEY_EVERY}
+ * entries it stores a keyframe (the whole grid) instead, so restoring any
+ * step only decodes one keyframe and the deltas after it. When the
+ * entries take more than the memory budget, the oldest keyframe and its
+ * deltas are dropped.</p>
+ * <p>If the simulation carries on from an earlier step (after a rewind or
+ * reset), the entries from that step on no longer happened and are
+ * dropped. A step changed while paused replaces its entry.</p>
+ * <p>The simulation threads make each copy as part of a step, which costs
+ * them a copy of the grid split between them; encoding and storing are
+ * done by this thread alone, which skips steps if it falls behind. Nothing
+ * is kept, or paid for, until {@link start}.</p>
+ *
+ * @author avk
+ */
+public class History implements Runnable {
+
+	// Defaults
+	final static int KEY_EVERY = 100; // entries
+	final static long BUDGET = 64L << 20; // bytes
+	final static int ENTRY_BYTES = 48; // Estimated overhead of an entry, counted against the budget
+
+	/**
+	 * <p>One stored step.</p>
+	 */
+	private static class Entry {
+		int step;
+		boolean key; // Keyframe (changes from an empty grid)
+		byte[] data;
+
+		Entry(int step, boolean key, byte[] data) {
+			this.step = step;
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	Simulation sim;
+	long budget;
+
+	// Entries, oldest first, starting with a keyframe (guarded by this)
+	private ArrayDeque<Entry> entries;
+	private long bytes;
+	private int sinceKey; // Entries since the last keyframe
+
+	// Depths as of the newest entry, the step being stored, and its encoder
+	private int[][] last;
+	private Snapshot snap;
+	private DeltaCodec codec;
+
+	private Thread thread;
+	private volatile boolean running;
+
+	// Stats
+	long evicted; // Entries dropped to stay in budget
+
+	/**
+	 * <p>Sets up an empty history (does not start recording).</p>
+	 *
+	 * @param sim Simulation to record
+	 * @param budget Memory for entries (bytes)
+	 */
+	History(Simulation sim, long budget) {
+		this.sim = sim;
+		this.budget = budget;
+		entries = new ArrayDeque<Entry>();
+
+		int dimx = sim.terrain.dimx(), dimy = sim.terrain.dimy();
+		last = new int[dimx][dimy];
+		snap = new Snapshot(dimx, dimy);
+		codec = new DeltaCodec(dimx, dimy);
+	}
+
+	/**
+	 * <p>Starts the recording thread, from the current state (does nothing
+	 * if started already).</p>
+	 */
+	synchronized void start() {
+		if (thread != null) { return; }
+		running = true;
+		sim.addSnapshot(snap);
+		thread = new Thread(this, "History");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * <p>Stops recording (entries are kept).</p>
+	 */
+	synchronized void stop() {
+		running = false;
+		sim.removeSnapshot(snap);
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * <p>Stores steps until stopped.</p>
+	 */
+	@Override
+	public void run() {
+		boolean first = true; // The state when started, even if it doesn't change
+		while (running) {
+			snap.request(first);
+			first = false;
+			while (running && !snap.ready()) {
+				LockSupport.park(this);
+			}
+			if (!running) { break; }
+			store(snap.step);
+		}
+	}
+
+	/**
+	 * <p>Stores the {@link Snapshot} as the newest entry.</p>
+	 *
+	 * @param step step number of the snapshot
+	 */
+	private synchronized void store(int step) {
+		// Back at an earlier step: what came after it is gone
+		if (!entries.isEmpty() && step <= entries.peekLast().step) {
+			while (!entries.isEmpty() && entries.peekLast().step >= step) {
+				bytes -= ENTRY_BYTES + entries.pollLast().data.length;
+			}
+			sinceKey = KEY_EVERY; // last no longer matches the newest entry
+		}
+
+		boolean key = entries.isEmpty() || sinceKey >= KEY_EVERY;
+		if (key) {
+			codec.encode(null, snap.depth);
+			for (int x=0; x<last.length; x++) {
+				System.arraycopy(snap.depth[x], 0, last[x], 0, last[x].length);
+			}
+			sinceKey = 0;
+		}
+		else {
+			codec.encode(last, snap.depth);
+			sinceKey++;
+		}
+		entries.addLast(new Entry(step, key, Arrays.copyOf(codec.buf, codec.len)));
+		bytes += ENTRY_BYTES + codec.len;
+
+		// Drop the oldest keyframe and its deltas, keeping at least one
+		while (bytes > budget) {
+			Iterator<Entry> it = entries.iterator();
+			it.next();
+			int n = 1;
+			while (it.hasNext() && !it.next().key) {
+				n++;
+			}
+			if (n == entries.size()) { break; } // Only one keyframe left
+			for (int i=0; i<n; i++) {
+				bytes -= ENTRY_BYTES + entries.pollFirst().data.length;
+				evicted++;
+			}
+		}
+	}
+
+	/**
+	 * <p>Rebuilds the depths at a step.</p>
+	 * <p>Uses the newest stored entry at or before the step.</p>
+	 *
+	 * @param step step to go back (or forward) to
+	 * @param depth filled with the depths at that step
+	 * @return step actually restored, or -1 if nothing is stored that early
+	 */
+	synchronized int restore(int step, int[][] depth) {
+		// Newest keyframe at or before the step
+		Entry from = null;
+		for (Entry e : entries) {
+			if (e.step > step) { break; }
+			if (e.key) {
+				from = e;
+			}
+		}
+		if (from == null) { return -1; }
+
+		for (int[] col : depth) {
+			Arrays.fill(col, 0);
+		}
+		int restored = -1;
+		boolean started = false;
+		for (Entry e : entries) {
+			if (e == from) {
+				started = true;
+			}
+			if (!started) { continue; }
+			if (e.step > step) { break; }
+			DeltaCodec.decode(e.data, 0, e.data.length, depth);
+			restored = e.step;
+		}
+		return restored;
+	}
+
+	/**
+	 * <p>Earliest stored step.</p>
+	 * @return step number, or -1 if empty
+	 */
+	synchronized int firstStep() {
+		return entries.isEmpty() ? -1 : entries.peekFirst().step;
+	}
+
+	/**
+	 * <p>Latest stored step.</p>
+	 * @return step number, or -1 if empty
+	 */
+	synchronized int lastStep() {
+		return entries.isEmpty() ? -1 : entries.peekLast().step;
+	}
+
+	/**
+	 * <p>Summary of what is stored.</p>
+	 * @return one line of stats
+	 */
+	synchronized String metrics() {
+		return String.format("History: steps %d-%d, %d entries, %d kB of %d kB, %d evicted",
+				firstStep(), lastStep(), entries.size(), bytes/1024, budget/1024, evicted);
+	}
+}
@@ -0,0 +1,116 @@
+package flow;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Headless check that rewinding while the simulation runs keeps the
+ * {@link History} true.</p>
+ * <p>Runs in {@link Simulation#jacobi} mode, where a step from the same
+ * water always gives the same water, so replaying after a rewind goes
+ * through exactly the steps it went through the first time. The water
+ * after each step is kept the first time the step is reached. The
+ * simulation is then rewound to random kept steps {@link REWINDS} times
+ * while playing, each rewind held up a little before its swap, and at
+ * the end every step in the history must restore to the water first seen
+ * at that step.</p>
+ * <p>Exits with status 1 if any step restores to different water.</p>
+ * <p>Usage: <code>java flow.HistoryCheck</code></p>
+ *
+ * @author avk
+ */
+public class HistoryCheck {
+
+	// Test grid
+	final static int DIMX = 120;
+	final static int DIMY = 90;
+	final static int THREADS = 4;
+
+	final static int REWINDS = 300;
+	final static int MAX_STEPS = 400; // Rewinds once past this
+	final static long SEED = 7;
+	final static long SETTLE_MS = 200; // For the history thread to catch up
+	final static long HOLD_NS = 500000; // Delay between a rewind and its swap
+
+	/**
+	 * <p>Runs the check.</p>
+	 *
+	 * @param args none
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		Random rnd = new Random(SEED);
+		float[][] h = new float[DIMX][DIMY];
+		for (int x=0; x<DIMX; x++) {
+			for (int y=0; y<DIMY; y++) {
+				float dx = x-DIMX/2f, dy = y-DIMY/2f;
+				h[x][y] = (dx*dx+dy*dy)*0.0005f + rnd.nextFloat()*0.3f;
+			}
+		}
+		Terrain t = new Terrain(h, THREADS);
+		Water w = new Water(t);
+		for (int i=0; i<20; i++) {
+			w.add(5+rnd.nextInt(DIMX-10), 5+rnd.nextInt(DIMY-10), 1+rnd.nextInt(20), 3);
+		}
+		Simulation sim = new Simulation(t, w, THREADS);
+		sim.jacobi = true;
+		w.swap(0);
+		w.copyBack(0, 1);
+
+		// Water first seen at each step (onStep runs just after the swap)
+		Map<Integer, int[][]> seen = new ConcurrentHashMap<Integer, int[][]>();
+		seen.put(0, copy(w.frontDepth));
+		sim.onStep = () -> seen.computeIfAbsent(w.frontStep, s -> copy(w.frontDepth));
+
+		sim.history = new History(sim, History.BUDGET);
+		sim.start();
+		sim.history.start();
+		sim.play();
+
+		for (int i=0; i<REWINDS; i++) {
+			Thread.sleep(rnd.nextInt(3));
+			int first = sim.history.firstStep(), last = sim.history.lastStep();
+			if (first < 0) { continue; }
+			if (sim.count.get() < MAX_STEPS && rnd.nextInt(4) != 0) { continue; }
+			sim.rewind(first + rnd.nextInt(last-first+1));
+			// Hold up the swap after the rewind, so the history thread is far
+			// more likely to have asked for a copy by then
+			sim.between(() -> LockSupport.parkNanos(HOLD_NS));
+			sim.play(); // Still running: the rewind happens between two steps
+		}
+		sim.pause();
+		Thread.sleep(SETTLE_MS);
+		sim.history.stop();
+		sim.end();
+
+		int checked = 0, bad = 0;
+		int[][] d = new int[DIMX][DIMY];
+		for (int s=sim.history.firstStep(); s<=sim.history.lastStep(); s++) {
+			int restored = sim.history.restore(s, d);
+			if (restored < 0) { continue; }
+			checked++;
+			int[][] expected = seen.get(restored);
+			if (expected == null || !Arrays.deepEquals(expected, d)) {
+				if (bad++ < 5) {
+					System.out.println("FAIL: step "+restored+" restores to water not seen at that step");
+				}
+			}
+		}
+		System.out.printf("%s %d rewinds, %d steps checked (%s), %d bad%n", bad == 0 ? "ok  " : "FAIL",
+				REWINDS, checked, sim.history.metrics(), bad);
+		System.exit(bad == 0 && checked > 0 ? 0 : 1);
+	}
+
+	/**
+	 * @param d depths
+	 * @return copy as an <code>int</code> grid
+	 */
+	private static int[][] copy(Depths d) {
+		int[][] c = new int[d.dimx][d.dimy];
+		d.copyTo(c);
+		return c;
+	}
+}
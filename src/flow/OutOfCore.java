@@ -0,0 +1,357 @@
+package flow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>Out-of-core water simulation.</p>
+ * <p>For terrains that do not fit in memory. Heights and depths are kept in
+ * memory-mapped {@link TileFile}s instead of arrays, and each step only visits
+ * tiles that hold water, in Z-order so that nearby tiles are visited
+ * together. Heights are loaded a row of tiles at a time. Before each step, the mappings of every tile that isn't wet or
+ * next to a wet tile are released, so the tiles held are the ones the step
+ * can touch. Released mappings are only unmapped when the garbage collector
+ * frees them, and their pages stay in memory until the OS pages them out:
+ * the tiles held are a bound on the mappings the step needs, not on the
+ * memory the process uses, which is reported separately (RSS).</p>
+ * <p>The per-cell rule is {@link Water#update}'s in unit mode, built from
+ * the same parts: one unit moves to the lowest neighbouring surface
+ * ({@link Water#surface}, ties broken by {@link Water#lower}, neighbours
+ * numbered as in {@link DescentTable}), and water on the map boundary runs
+ * off. Neighbours are checked in numbered order rather than by
+ * {@link DescentTable#order}, which would need a table as large as the
+ * grid. Runs headless and single threaded, printing paging stats as it
+ * goes.</p>
+ *
+ * @author avk
+ */
+public class OutOfCore {
+
+	// Defaults
+	final static int TILE = 64;
+	final static int REPORT_EVERY = 100; // steps
+
+	int dimx, dimy; // Grid dimensions
+	TileFile height; // Terrain height (float)
+	TileFile depth; // Water depth (int)
+
+	/**
+	 * <p>Water units on each tile, so dry tiles can be skipped
+	 * without being mapped.</p>
+	 */
+	int[] tileWater;
+	long waterRemoved; // Units run off the edge
+
+	/**
+	 * <p>Every tile number, in Z-order.</p>
+	 */
+	private int[] zorder;
+
+	// Tiles visited by the current step, and tiles to keep mapped for it
+	private int[] active;
+	private boolean[] keep;
+
+	/**
+	 * <p>Shuffled order of cells within a tile.</p>
+	 * <p>Same purpose as {@link Terrain#genPermute}, but one list is
+	 * shared by all tiles.</p>
+	 */
+	private int[] order;
+
+	/**
+	 * <p>Streams terrain data from file into a mapped height grid.</p>
+	 * <p>Rows are read in bands of <code>tile</code> rows, one row of
+	 * tiles, and each band's mappings are released once it is written, so
+	 * loading holds one row of tiles at a time.</p>
+	 *
+	 * @param dataFile Path to file containing terrain data
+	 * @param dir Directory for the tile files
+	 * @param tile Tile side length
+	 * @throws IOException if the terrain or tile files cannot be read/written
+	 */
+	OutOfCore(String dataFile, File dir, int tile) throws IOException {
+		try (BufferedReader r = Files.newBufferedReader(Paths.get(dataFile))) {
+			Scanner sc = new Scanner(r);
+			sc.useLocale(Locale.US);
+
+			// Same layout as Terrain.readData
+			dimy = sc.nextInt();
+			dimx = sc.nextInt();
+
+			File hf = File.createTempFile("height", ".tiles", dir);
+			File df = File.createTempFile("depth", ".tiles", dir);
+			hf.deleteOnExit();
+			df.deleteOnExit();
+			height = new TileFile(hf, dimx, dimy, tile);
+			depth = new TileFile(df, dimx, dimy, tile);
+			keep = new boolean[height.tilesX*height.tilesY]; // None
+
+			for(int y = 0; y < dimy; y++) {
+				for(int x = 0; x < dimx; x++)
+					height.putFloat(x, y, sc.nextFloat());
+				if ((y+1)%tile == 0) {
+					height.release(keep); // Band done
+				}
+			}
+			height.release(keep);
+		}
+
+		tileWater = new int[height.tilesX*height.tilesY];
+		active = new int[tileWater.length];
+
+		// Sort (Z-order key, tile) pairs; keys fit in 32 bits for up to 65536 tiles a side
+		long[] z = new long[tileWater.length];
+		for (int t=0; t<z.length; t++) {
+			z[t] = morton(t) << 32 | t;
+		}
+		Arrays.sort(z);
+		zorder = new int[z.length];
+		for (int i=0; i<zorder.length; i++) {
+			zorder[i] = (int)z[i];
+		}
+
+		order = new int[tile*tile];
+		for (int i=0; i<order.length; i++) {
+			order[i] = i;
+		}
+		Terrain.shuffle(order, ThreadLocalRandom.current());
+	}
+
+	/**
+	 * <p>Adds water with given dimensions at given coords.</p>
+	 * <p>Same as {@link Water#add}.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param d depth of water drop
+	 * @param s spread of water drop
+	 */
+	void add(int x, int y, int d, int s) {
+		for (int i=-s; i<=s; i++) {
+			for (int j=-s; j<=s; j++) {
+				int t = depth.tileOf(x+i, y+j);
+				tileWater[t] += d - depth.getInt(x+i, y+j);
+				depth.putInt(x+i, y+j, d);
+			}
+		}
+	}
+
+	/**
+	 * <p>Total water on the grid.</p>
+	 * @return Number of water units on the grid
+	 */
+	long waterCount() {
+		long c = 0;
+		for (int w : tileWater) {
+			c += w;
+		}
+		return c;
+	}
+
+	/**
+	 * <p>Finds the tiles that currently hold water, in Z-order, and
+	 * releases the mappings of all but those and their neighbours.</p>
+	 * @return number of wet tiles (first in {@link active})
+	 */
+	int activeTiles() {
+		int tx = height.tilesX, ty = height.tilesY;
+		Arrays.fill(keep, false);
+		int n = 0;
+		for (int t : zorder) {
+			if (tileWater[t] > 0) {
+				active[n++] = t;
+				int x = t%tx, y = t/tx;
+				for (int j=Math.max(y-1, 0); j<=Math.min(y+1, ty-1); j++) {
+					for (int i=Math.max(x-1, 0); i<=Math.min(x+1, tx-1); i++) {
+						keep[j*tx + i] = true;
+					}
+				}
+			}
+		}
+		height.release(keep);
+		depth.release(keep);
+		return n;
+	}
+
+	/**
+	 * <p>Interleaves tile x and y so nearby tiles sort together.</p>
+	 *
+	 * @param t tile number
+	 * @return Z-order key
+	 */
+	private long morton(int t) {
+		long tx = t%height.tilesX, ty = t/height.tilesX, key = 0;
+		for (int b=0; b<32; b++) {
+			key |= ((tx>>b)&1L)<<(2*b) | ((ty>>b)&1L)<<(2*b+1);
+		}
+		return key;
+	}
+
+	/**
+	 * <p>Performs one traversal over every wet tile.</p>
+	 * @return Number of tiles visited
+	 */
+	int step() {
+		int tile = height.tile;
+		int n = activeTiles();
+
+		for (int k=0; k<n; k++) {
+			int t = active[k];
+			int x0 = (t%height.tilesX)*tile;
+			int y0 = (t/height.tilesX)*tile;
+
+			for (int i=0; i<order.length; i++) {
+				int x = x0 + order[i]%tile;
+				int y = y0 + order[i]/tile;
+				if (x >= dimx || y >= dimy) { continue; } // Partial tile
+
+				if (x==0 || y==0 || x==dimx-1 || y==dimy-1) {
+					updateEdge(x, y);
+				}
+				else {
+					update(x, y);
+				}
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * <p>Clears water from a boundary point (runs off the edge).</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 */
+	void updateEdge(int x, int y) {
+		int d = depth.getInt(x, y);
+		if (d != 0) {
+			depth.putInt(x, y, 0);
+			tileWater[depth.tileOf(x, y)] -= d;
+			waterRemoved += d;
+		}
+	}
+
+	/**
+	 * <p>Moves one unit of water to the lowest neighbouring point.</p>
+	 * <p>Same choice as {@link Water#findLowest}, from the same parts.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 */
+	void update(int x, int y) {
+		int d = depth.getInt(x, y);
+		if (d == 0) { return; }
+
+		// set initial min to surface of current point
+		float min = Water.surface(height.getFloat(x, y), d);
+		int idxMin = -1;
+
+		for (int i=0; i<8; i++) {
+			int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+			float s = Water.surface(height.getFloat(nx, ny), depth.getInt(nx, ny));
+			if (Water.lower(s, i, min, idxMin)) {
+				min = s;
+				idxMin = i;
+			}
+		}
+
+		if (idxMin < 0) { return; } // no water flow
+		int nx = x+DescentTable.DX[idxMin], ny = y+DescentTable.DY[idxMin];
+		depth.putInt(x, y, d-1); // water out
+		depth.putInt(nx, ny, depth.getInt(nx, ny)+1); // water in
+
+		int from = depth.tileOf(x, y), to = depth.tileOf(nx, ny);
+		if (from != to) {
+			tileWater[from]--;
+			tileWater[to]++;
+		}
+	}
+
+	/**
+	 * <p>Reads the resident set size of this process.</p>
+	 * @return VmRSS in kB, or -1 if unavailable (not Linux)
+	 */
+	static long residentSetKB() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", ""));
+				}
+			}
+		}
+		catch (IOException | NumberFormatException e) {}
+		return -1;
+	}
+
+	/**
+	 * <p>Runs the simulation headless and reports paging stats.</p>
+	 * <p>Usage: <code>java flow.OutOfCore datafile steps [tile] [x,y ...]</code>.
+	 * Each <code>x,y</code> adds a drop of water; if none are given one drop
+	 * is added at the center.</p>
+	 *
+	 * @param args command line arguments
+	 */
+	public static void main(String[] args) {
+		if(args.length < 2) {
+			System.out.println("Usage: java flow.OutOfCore datafile steps [tile] [x,y ...]");
+			System.exit(0);
+		}
+		int steps = Integer.parseInt(args[1]);
+		int tile = args.length > 2 ? Integer.parseInt(args[2]) : TILE;
+
+		try {
+			long t0 = System.nanoTime();
+			OutOfCore sim = new OutOfCore(args[0], null, tile);
+			System.out.printf("Loaded %dx%d grid into %d tiles in %d ms%n", sim.dimx, sim.dimy,
+					sim.tileWater.length, (System.nanoTime()-t0)/1000000);
+
+			if (args.length > 3) {
+				for (int i=3; i<args.length; i++) {
+					String[] p = args[i].split(",");
+					sim.add(Integer.parseInt(p[0]), Integer.parseInt(p[1]),
+							FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+				}
+			}
+			else {
+				sim.add(sim.dimx/2, sim.dimy/2, FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+			}
+
+			long pageIns = sim.height.pageIns + sim.depth.pageIns; // Exclude loading
+			long last = System.nanoTime();
+			for (int s=1; s<=steps; s++) {
+				int active = sim.step();
+
+				if (s%REPORT_EVERY == 0 || s == steps) {
+					long now = System.nanoTime();
+					double secs = (now-last)/1e9;
+					long in = sim.height.pageIns + sim.depth.pageIns;
+					int res = sim.height.residentTiles() + sim.depth.residentTiles();
+					System.out.printf("step %d: %.1f steps/s, %d wet tiles, %d tiles held (%d kB mapped, "
+							+ "released ones until GC), %.1f page-ins/s, RSS %d kB, water %d (run off %d)%n",
+							s, (s%REPORT_EVERY == 0 ? REPORT_EVERY : s%REPORT_EVERY)/secs, active,
+							res, res*sim.height.tileBytes()/1024, (in-pageIns)/secs,
+							residentSetKB(), sim.waterCount(), sim.waterRemoved);
+					pageIns = in;
+					last = now;
+				}
+			}
+			sim.height.close();
+			sim.depth.close();
+		}
+		catch (IOException e) {
+			System.out.println("Unable to run out-of-core simulation on "+args[0]);
+			e.printStackTrace();
+		}
+		catch (java.util.InputMismatchException e) {
+			System.out.println("Malformed input file "+args[0]);
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package flow;
+
+/**
+ * <p>Evens out the work done by each simulation thread.</p>
+ * <p>Thread zones start as equal bands of columns, but most of the work
+ * is done on wet points and water collects in valleys, so one thread can
+ * end up doing nearly all of it while the others wait at the phaser.
+ * Each thread reports how long its traversals take; every {@link EVERY}
+ * steps, if the slowest thread took noticeably longer than average, the
+ * zones are redrawn so each covers about the same estimated cost, counting
+ * wet points as {@link WET_COST} and dry points as {@link DRY_COST}.</p>
+ *
+ * @author avk
+ */
+public class Rebalancer {
+
+	// Tuning
+	final static int EVERY = 50; // steps
+	final static int DRY_COST = 1;
+	final static int WET_COST = 10;
+	final static double THRESHOLD = 1.1; // slowest/average time that triggers a rebalance
+
+	Terrain terrain;
+	int n; // Number of threads
+
+	/**
+	 * <p>Traversal time of each thread since the last check (ns).</p>
+	 * <p>Each thread only writes its own slot; the slots are read
+	 * between steps.</p>
+	 */
+	private long[] nanos;
+
+	// Reused by check, so checking allocates nothing unless zones change
+	private long[] cost;
+	private int[] next;
+
+	// Stats
+	int rebalances;
+	double lastImbalance; // slowest/average time at last check
+
+	/**
+	 * @param t Terrain whose zones are balanced
+	 * @param numThreads Number of simulation threads
+	 */
+	Rebalancer(Terrain t, int numThreads) {
+		terrain = t;
+		n = numThreads;
+		nanos = new long[n];
+		cost = new long[t.dimx()];
+		next = new int[n+1];
+	}
+
+	/**
+	 * <p>Records the time one thread spent traversing its zone.</p>
+	 *
+	 * @param pIdx thread number
+	 * @param ns traversal time (ns)
+	 */
+	void record(int pIdx, long ns) {
+		nanos[pIdx] += ns;
+	}
+
+	/**
+	 * <p>Redraws zones if the threads are out of balance.</p>
+	 * <p>Only called between steps.</p>
+	 *
+	 * @param depth Current water depths
+	 * @return true if the zones changed
+	 */
+	boolean check(Depths depth) {
+		long max = 0, sum = 0;
+		for (int i=0; i<n; i++) {
+			max = Math.max(max, nanos[i]);
+			sum += nanos[i];
+			nanos[i] = 0;
+		}
+		lastImbalance = sum == 0 ? 1 : (double)max*n/sum;
+		if (lastImbalance < THRESHOLD) { return false; }
+
+		// Estimated cost of each column (all of a dry tile is dry)
+		int dimy = terrain.dimy();
+		for (int x=0; x<cost.length; x++) {
+			cost[x] = 0;
+			for (int y=0; y<dimy; y++) {
+				if (depth.dry(x, y)) {
+					int end = Math.min((y|(Depths.STRIP-1))+1, dimy);
+					cost[x] += (end-y)*DRY_COST;
+					y = end-1;
+					continue;
+				}
+				cost[x] += depth.get(x, y) > 0 ? WET_COST : DRY_COST;
+			}
+		}
+
+		partition(cost, n, next);
+		if (terrain.hasBounds(next)) { return false; }
+		terrain.setBounds(next);
+		rebalances++;
+		return true;
+	}
+
+	/**
+	 * <p>Splits columns into zones of about equal total cost.</p>
+	 * <p>Every zone gets at least one column.</p>
+	 *
+	 * @param cost cost of each column
+	 * @param parts number of zones
+	 * @param b filled with the first column of each zone, plus the number of columns at the end
+	 */
+	static void partition(long[] cost, int parts, int[] b) {
+		long total = 0;
+		for (long c : cost) {
+			total += c;
+		}
+
+		b[0] = 0;
+		b[parts] = cost.length;
+		long acc = 0;
+		int x = 0;
+		for (int i=1; i<parts; i++) {
+			long target = total*i/parts;
+			while (x < cost.length && acc + cost[x] <= target) {
+				acc += cost[x++];
+			}
+			// At least one column per zone, and leave one for each zone after
+			b[i] = Math.min(Math.max(x, b[i-1]+1), cost.length-(parts-i));
+			while (x < b[i]) {
+				acc += cost[x++];
+			}
+		}
+	}
+}
@@ -0,0 +1,328 @@
+package flow;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * <p>Records the simulation to disk.</p>
+ * <p>Every <code>every</code> steps the water image is copied into a
+ * frame buffer and put in a bounded queue. A background thread takes frames
+ * off the queue, draws them over the terrain and encodes them, either as a
+ * numbered PNG sequence or as one animated GIF. Frame buffers are reused, so
+ * once they have all been made, taking a snapshot is one array copy and
+ * allocates nothing. When every buffer is in use the {@link Policy} decides
+ * whether to drop a frame or make the simulation wait (never for longer
+ * than the encoder is alive), so by default recording never holds up the
+ * {@link Simulation.Simulate} threads.</p>
+ * <p>The encoder thread is not a daemon: after {@link stop} it finishes
+ * the frames already queued (and the GIF's trailer) before the program can
+ * exit.</p>
+ *
+ * @author avk
+ */
+public class Recorder implements Runnable {
+
+	/**
+	 * <p>What to do with a new frame when the queue is full.</p>
+	 */
+	enum Policy {
+		/** Wait for space (back-pressure on the simulation) */
+		BLOCK,
+		/** Discard the new frame */
+		DROP_NEWEST,
+		/** Discard the oldest queued frame to make space */
+		DROP_OLDEST
+	}
+
+	/**
+	 * <p>Output format.</p>
+	 */
+	enum Format {
+		/** One PNG file per frame */
+		PNG,
+		/** One looping animated GIF */
+		GIF
+	}
+
+	// Defaults
+	final static int EVERY = 10; // steps
+	final static int CAPACITY = 16; // frames
+	final static int GIF_DELAY = 10; // hundredths of a second per frame
+	final static long WAIT_MS = 100; // Longest wait before checking the encoder is still going
+
+	File dir; // Output directory
+	int every;
+	Policy policy;
+	Format format;
+
+	// Frames waiting to be encoded, and buffers free to take the next ones
+	private BlockingQueue<Frame> queue;
+	private BlockingQueue<Frame> free;
+	private int capacity;
+	private int made; // Frame buffers made so far (by the simulation thread)
+
+	private Thread encoder;
+	private volatile boolean ended; // stop was called
+	private volatile boolean done; // encoder has finished (or failed)
+
+	// Stats
+	AtomicInteger written;
+	AtomicInteger dropped;
+
+	/**
+	 * <p>Snapshot of one step (a reused buffer).</p>
+	 */
+	private static class Frame {
+		int step;
+		BufferedImage terrain; // Drawn under the water (not copied: it doesn't change)
+		final BufferedImage water;
+		final int[] px; // Pixels of water
+
+		Frame(int width, int height) {
+			water = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			px = ((DataBufferInt) water.getRaster().getDataBuffer()).getData();
+		}
+	}
+
+	/**
+	 * <p>Sets up a recorder (does not start it).</p>
+	 *
+	 * @param dir Output directory (created if needed)
+	 * @param every Record one frame every this many steps
+	 * @param capacity Maximum number of frames waiting to be encoded
+	 * @param policy What to do when the queue is full
+	 * @param format Output format
+	 */
+	Recorder(File dir, int every, int capacity, Policy policy, Format format) {
+		this.dir = dir;
+		this.every = every;
+		this.policy = policy;
+		this.format = format;
+		this.capacity = capacity;
+		queue = new ArrayBlockingQueue<Frame>(capacity+1);
+		free = new ArrayBlockingQueue<Frame>(capacity+1);
+		written = new AtomicInteger(0);
+		dropped = new AtomicInteger(0);
+	}
+
+	/**
+	 * <p>Starts the encoder thread.</p>
+	 */
+	void start() {
+		dir.mkdirs();
+		encoder = new Thread(this, "Recorder");
+		encoder.start();
+	}
+
+	/**
+	 * <p>Ends the recording.</p>
+	 * <p>Doesn't wait: frames already queued are still encoded, and the
+	 * encoder thread finishes in the background.</p>
+	 */
+	void stop() {
+		ended = true;
+	}
+
+	/**
+	 * <p>Offers a step to the recorder.</p>
+	 * <p>Only every <code>every</code>th step is snapshotted. Called by the
+	 * last thread to finish a step, with the frozen front buffers, so the
+	 * water image is not being written to while it is copied.</p>
+	 *
+	 * @param step Step number
+	 * @param terrain Terrain image
+	 * @param water Water image
+	 */
+	void offer(int step, BufferedImage terrain, BufferedImage water) {
+		if (step%every != 0 || ended || done) { return; }
+
+		// Up to one buffer per queue slot, plus the one being encoded
+		Frame f = free.poll();
+		if (f == null && made <= capacity) {
+			f = new Frame(water.getWidth(), water.getHeight());
+			made++;
+		}
+		if (f == null) {
+			switch (policy) {
+			case BLOCK:
+				try {
+					while (f == null && !ended && !done) {
+						f = free.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				break;
+			case DROP_NEWEST:
+				break;
+			case DROP_OLDEST:
+				f = queue.poll();
+				break;
+			}
+			if (policy != Policy.BLOCK || f == null) {
+				dropped.getAndIncrement(); // The oldest queued, or this one
+			}
+			if (f == null) { return; }
+		}
+
+		int[] px = ((DataBufferInt) water.getRaster().getDataBuffer()).getData();
+		System.arraycopy(px, 0, f.px, 0, f.px.length);
+		f.step = step;
+		f.terrain = terrain;
+		queue.offer(f); // There is a slot for every buffer
+	}
+
+	/**
+	 * <p>Encodes frames until the end of the recording.</p>
+	 */
+	@Override
+	public void run() {
+		ImageWriter gif = null;
+		ImageOutputStream gifOut = null;
+		BufferedImage img = null; // Terrain and water of a frame (GIF has no alpha channel)
+
+		try {
+			if (format == Format.GIF) {
+				gif = ImageIO.getImageWritersByFormatName("gif").next();
+				gifOut = ImageIO.createImageOutputStream(new File(dir, "recording.gif"));
+				if (gifOut == null) {
+					throw new IOException("Unable to create "+new File(dir, "recording.gif"));
+				}
+				gif.setOutput(gifOut);
+				gif.prepareWriteSequence(null);
+			}
+
+			while (true) {
+				Frame f = queue.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+				if (f == null) {
+					if (ended) { break; } // End of recording, all encoded
+					continue;
+				}
+
+				// Composite onto an opaque frame, then the buffer can be reused
+				if (img == null) {
+					img = new BufferedImage(f.water.getWidth(), f.water.getHeight(), BufferedImage.TYPE_INT_RGB);
+				}
+				Graphics2D g = img.createGraphics();
+				g.drawImage(f.terrain, 0, 0, null);
+				g.drawImage(f.water, 0, 0, null);
+				g.dispose();
+				int step = f.step;
+				free.offer(f);
+
+				Events.Write e = null;
+				if (Events.WRITE.isEnabled()) {
+					e = new Events.Write();
+					e.begin();
+				}
+				File out;
+				long before = 0;
+				if (format == Format.PNG) {
+					out = new File(dir, String.format("frame%08d.png", step));
+					ImageIO.write(img, "png", out);
+				}
+				else {
+					out = new File(dir, "recording.gif");
+					before = gifOut.getStreamPosition();
+					gif.writeToSequence(new IIOImage(img, null, gifMetadata(gif, img, written.get()==0)), null);
+				}
+				written.getAndIncrement();
+				if (e != null) {
+					e.path = out.getPath();
+					e.bytes = format == Format.PNG ? out.length() : gifOut.getStreamPosition()-before;
+					e.commit();
+				}
+			}
+
+			if (gif != null) {
+				gif.endWriteSequence();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("Unable to write recording to "+dir);
+			e.printStackTrace();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			done = true; // Nothing more will be taken off the queue
+			try {
+				if (gifOut != null) {
+					gifOut.close();
+				}
+			}
+			catch (IOException e) {}
+		}
+		System.out.println("Recording finished: "+written.get()+" frames written, "
+				+dropped.get()+" dropped ("+dir+")");
+	}
+
+	/**
+	 * <p>Builds GIF frame metadata: frame delay and, on the first frame,
+	 * the application extension that makes the animation loop.</p>
+	 *
+	 * @param w GIF writer
+	 * @param img frame
+	 * @param first whether this is the first frame
+	 * @return frame metadata
+	 * @throws IOException if the metadata cannot be built
+	 */
+	private static IIOMetadata gifMetadata(ImageWriter w, BufferedImage img, boolean first) throws IOException {
+		IIOMetadata meta = w.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), null);
+		String fmt = meta.getNativeMetadataFormatName();
+		IIOMetadataNode root = (IIOMetadataNode) meta.getAsTree(fmt);
+
+		IIOMetadataNode gce = child(root, "GraphicControlExtension");
+		gce.setAttribute("disposalMethod", "none");
+		gce.setAttribute("userInputFlag", "FALSE");
+		gce.setAttribute("transparentColorFlag", "FALSE");
+		gce.setAttribute("delayTime", String.valueOf(GIF_DELAY));
+		gce.setAttribute("transparentColorIndex", "0");
+
+		if (first) {
+			// NETSCAPE2.0 extension, loop forever
+			IIOMetadataNode app = new IIOMetadataNode("ApplicationExtension");
+			app.setAttribute("applicationID", "NETSCAPE");
+			app.setAttribute("authenticationCode", "2.0");
+			app.setUserObject(new byte[] {1, 0, 0});
+			child(root, "ApplicationExtensions").appendChild(app);
+		}
+
+		meta.setFromTree(fmt, root);
+		return meta;
+	}
+
+	/**
+	 * <p>Finds a metadata node by name, adding it if it is missing.</p>
+	 *
+	 * @param root parent node
+	 * @param name node name
+	 * @return the child node
+	 */
+	private static IIOMetadataNode child(IIOMetadataNode root, String name) {
+		for (int i=0; i<root.getLength(); i++) {
+			if (root.item(i).getNodeName().equals(name)) {
+				return (IIOMetadataNode) root.item(i);
+			}
+		}
+		IIOMetadataNode node = new IIOMetadataNode(name);
+		root.appendChild(node);
+		return node;
+	}
+}
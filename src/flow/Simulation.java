@@ -0,0 +1,589 @@
+package flow;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Runs the simulation threads.</p>
+ * <p>Owns the {@link Simulate} threads and the <code>Phaser</code> that keeps
+ * them in step. Each step has two phases: first the threads bring the
+ * {@link Water} back buffers up to date with the front buffers (each copies
+ * one chunk), then they traverse the grid writing into the back buffers.
+ * When the last thread finishes a step the buffers are swapped, so the
+ * front buffers always hold a complete step that can be rendered or
+ * exported while the next one is being computed.</p>
+ * <p>Anything that changes the water from outside the simulation (adding
+ * water, reset) is queued with {@link between} and run while no thread is
+ * traversing the grid.</p>
+ * <p>In {@link jacobi} mode each point's move is decided from the front
+ * buffers alone, so a step's result is the same however the threads
+ * interleave and however many there are.</p>
+ * <p>This is a Controller class (of the MVC design pattern). It has no UI,
+ * so it can be run headless; {@link FlowPanel} puts a UI on top of it.</p>
+ *
+ * @author avk
+ */
+public class Simulation {
+
+	// Data
+	Terrain terrain;
+	Water water;
+
+	// How long idle threads wait between checks while paused (ms)
+	final static int PAUSE_MS = 10;
+
+	// Stages of a step (which phase the phaser is in)
+	private final static int COPY = 0;
+	private final static int SWEEP = 1;
+	private final static int IDLE = 2;
+
+	int numThreads;
+
+	/**
+	 * <p>Jacobi mode: threads decide every move from the front buffers and
+	 * write only their own zone, adding water moved across a zone edge once
+	 * the step is done (see {@link Water#updateJ}). No locks are taken, and
+	 * results are repeatable. Set before the simulation starts.</p>
+	 */
+	boolean jacobi;
+
+	// Count
+	AtomicInteger count;
+
+	// Threading
+	Phaser phaser;
+	volatile boolean paused;
+	volatile boolean ended;
+	private volatile int stage;
+
+	/**
+	 * <p>Work to run between steps.</p>
+	 */
+	private Queue<Runnable> tasks;
+
+	/**
+	 * <p>Called after every completed step (and after tasks run while
+	 * paused), by the last thread to arrive. Set by the UI to repaint.</p>
+	 */
+	volatile Runnable onStep;
+
+	// Recording (null when not recording)
+	volatile Recorder recorder;
+
+	// Past steps for rewinding (null if not kept)
+	volatile History history;
+	private boolean rewound; // Set by a rewind task, until the end of the step
+
+	// Copies of the water other threads asked for (replaced, never changed)
+	private volatile Snapshot[] snapshots = new Snapshot[0];
+
+	// Load balancing of thread zones
+	Rebalancer rebalancer;
+
+	// Steady state solver (created on first use)
+	private Equilibrium equilibrium;
+
+	// Where the work is done (null when not counted), set before starting
+	Activity activity;
+
+	// Simulation threads' engines, by thread number
+	private Simulate[] workers;
+
+	/**
+	 * <p>Sets up the phaser (does not start threads).</p>
+	 *
+	 * @param t Terrain to simulate on
+	 * @param w Water on the terrain
+	 * @param n Number of simulation threads
+	 */
+	Simulation(Terrain t, Water w, int n) {
+		terrain = t;
+		water = w;
+		numThreads = n;
+		count = new AtomicInteger(0);
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		rebalancer = new Rebalancer(terrain, numThreads);
+		workers = new Simulate[numThreads];
+
+		// Set initial ended and paused states
+		ended = false;
+		paused = true;
+		stage = IDLE;
+
+		/* onAdvance is run by the last thread to arrive at each phase,
+		 * while all the others are waiting, so nothing is traversing the grid.
+		 */
+		phaser = new Phaser(numThreads) {
+			@Override
+			protected boolean onAdvance(int phase, int parties) {
+				return advance();
+			}
+		};
+	}
+
+	/**
+	 * <p>Creates and starts threads.</p>
+	 */
+	void start() {
+		for(int s=0; s<numThreads; s++) {
+			Thread temp =  new Thread(new Simulate(s), "Simulate-"+s);
+			temp.setDaemon(true);
+			temp.start();
+		}
+	}
+
+	/**
+	 * <p>Actions taken when all threads reach the end of a phase.</p>
+	 *
+	 * @return true to terminate the phaser (simulation ended)
+	 */
+	private boolean advance() {
+		if (stage == COPY) {
+			for (Snapshot s : snapshots) {
+				if (s.taking) {
+					s.done(); // Every thread has copied its part
+				}
+			}
+			stage = SWEEP;
+			return ended;
+		}
+
+		boolean stepped = stage == SWEEP;
+		if (stepped) {
+			count.getAndIncrement();
+		}
+		if (stepped && jacobi) {
+			// Water moved across zone edges
+			for (Simulate s : workers) {
+				s.addHalo();
+			}
+		}
+
+		// Outside changes go into the back buffers, like a step
+		boolean changed = !tasks.isEmpty();
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+
+		if (stepped || changed) {
+			water.swap(count.get());
+		}
+
+		if (stepped && count.get()%Rebalancer.EVERY == 0) {
+			rebalancer.check(water.frontDepth);
+		}
+
+		stage = paused ? IDLE : COPY;
+		if (stage == IDLE && (stepped || changed)) {
+			// No copy phase while idle, so keep back buffers current here
+			water.copyBack(0, 1);
+		}
+
+		// Copies asked for: made by the threads in the copy stage, or here
+		// if idle. Not of a rewind itself, which would drop the history after it
+		for (Snapshot s : snapshots) {
+			if (s.wanted((stepped || changed) && !rewound)) {
+				s.step = water.frontStep;
+				if (stage == IDLE) {
+					water.frontDepth.copyTo(s.depth);
+					s.done();
+				}
+				else {
+					s.taking = true;
+				}
+			}
+		}
+
+		if (stepped) {
+			Recorder r = recorder;
+			if (r != null) {
+				r.offer(count.get(), terrain.getImage(), water.getImage());
+			}
+		}
+		rewound = false;
+		Runnable r = onStep;
+		if (r != null && (stepped || changed)) {
+			r.run();
+		}
+		return ended;
+	}
+
+	/**
+	 * <p>Starts making copies of the water for another thread when it asks
+	 * (see {@link Snapshot}).</p>
+	 *
+	 * @param s copy to make
+	 */
+	synchronized void addSnapshot(Snapshot s) {
+		Snapshot[] a = Arrays.copyOf(snapshots, snapshots.length+1);
+		a[a.length-1] = s;
+		snapshots = a;
+	}
+
+	/**
+	 * <p>Stops making copies for a {@link Snapshot}.</p>
+	 *
+	 * @param s copy to stop making
+	 */
+	synchronized void removeSnapshot(Snapshot s) {
+		Snapshot[] a = new Snapshot[snapshots.length];
+		int n = 0;
+		for (Snapshot t : snapshots) {
+			if (t != s) {
+				a[n++] = t;
+			}
+		}
+		snapshots = Arrays.copyOf(a, n);
+	}
+
+	/**
+	 * <p>Queues work to be run between steps.</p>
+	 * <p>Runs when the current step finishes, or within {@link PAUSE_MS}
+	 * if paused. The work should change the back buffers; they are
+	 * swapped to the front afterwards.</p>
+	 *
+	 * @param task work to run
+	 */
+	void between(Runnable task) {
+		tasks.add(task);
+	}
+
+	// ==========
+	//  Controls
+	// ==========
+
+	/**
+	 * <p>Resumes simulation.</p>
+	 */
+	void play() {
+		paused = false;
+	}
+
+	/**
+	 * <p>Pauses simulation (after the current step).</p>
+	 */
+	void pause() {
+		paused = true;
+	}
+
+	/**
+	 * <p>Resets simulation.</p>
+	 * <p>Pauses, then resets water and counter to zero between steps.</p>
+	 */
+	void reset() {
+		paused = true;
+		between(() -> {
+			water.reset();
+			count.set(0);
+			Activity a = activity;
+			if (a != null) {
+				a.clear();
+			}
+		});
+	}
+
+	/**
+	 * <p>Jumps straight to where the water would settle.</p>
+	 * <p>Replaces the water with its steady state (see {@link Equilibrium})
+	 * between steps. The step counter is left alone.</p>
+	 */
+	void settle() {
+		between(() -> {
+			if (equilibrium == null) {
+				equilibrium = new Equilibrium(terrain);
+				System.out.printf("Flooded terrain: %d basins in %d ms%n",
+						equilibrium.basins(), equilibrium.floodNanos/1000000);
+			}
+			int[][] depth = new int[terrain.dimx()][terrain.dimy()];
+			water.depth.copyTo(depth);
+			long lost = equilibrium.settle(depth);
+			lost += water.depth.copyFrom(depth); // Deeper than compact depths hold
+			water.recolor();
+			System.out.printf("Settled in %d ms (%d units ran off)%n",
+					equilibrium.settleNanos/1000000, lost);
+		});
+	}
+
+	/**
+	 * <p>Goes back (or forward) to a step kept in the {@link History}.</p>
+	 * <p>Pauses, then replaces the water and counter between steps. Playing
+	 * from there replays from that step; steps after it are dropped from
+	 * the history once a new step is taken.</p>
+	 *
+	 * @param step step to go to (the nearest kept step at or before it is used)
+	 */
+	void rewind(int step) {
+		paused = true;
+		between(() -> {
+			History h = history;
+			int[][] depth = new int[terrain.dimx()][terrain.dimy()];
+			int restored = h == null ? -1 : h.restore(step, depth);
+			if (restored < 0) { return; }
+			water.depth.copyFrom(depth);
+			water.recolor();
+			count.set(restored);
+			rewound = true;
+		});
+	}
+
+	/**
+	 * <p>Ends simulation.</p>
+	 * <p>Threads stop at the end of the current phase.</p>
+	 */
+	void end() {
+		ended = true;
+		phaser.forceTermination();
+	}
+
+	/**
+	 * <p>Simulation engine.</p>
+	 * <p>Runnable class that is instantiated by {@link Simulation}
+	 * as Threads to traverse the grid and simulate the flow of the
+	 * water over the terrain. When a thread completes one iteration
+	 * (one traversal of it's section of the grid) it arrives at the
+	 * phaser, so threads are synchronized at each traversal.</p>
+	 * <p>This is a Controller class (of the MVC design pattern).
+	 * It handles the data and makes decisions on what to do and
+	 * when to do it.</p>
+	 *
+	 * @author avk
+	 */
+	class Simulate implements Runnable {
+
+		int tNum; // Thread number [0, numThreads)
+		int[] coords; // Coords of current point
+
+		// Jacobi mode: water moved into the columns either side of the zone
+		private int[] left, right;
+		private int leftX, rightX; // Those columns, as of the last sweep
+
+		/**
+		 * <p><code>Simulate</code> constructor.</p>
+		 * @param t Thread number (0,1,...)
+		 */
+		Simulate (int t) {
+			tNum = t;
+			coords = new int[2];
+			left = new int[terrain.dimy()];
+			right = new int[terrain.dimy()];
+			leftX = -1;
+			rightX = -1;
+			workers[t] = this;
+		}
+
+		/**
+		 * <p>Traverses grid updating water depths.</p>
+		 */
+		@Override
+		public void run() {
+
+			while (!ended) { // Loop until simulation is ended
+
+				// Stage only changes while every thread is waiting at the phaser
+				String phase = "idle";
+				if (stage == IDLE) {
+					try {
+						Thread.sleep(PAUSE_MS);
+					}
+					catch (InterruptedException err) {
+						return;
+					}
+				}
+				else {
+					water.copyBack(tNum, numThreads);
+					copySnapshots();
+					if (!await("copy")) { return; }
+
+					Events.Step e = null;
+					if (Events.STEP.isEnabled()) {
+						e = new Events.Step();
+						e.begin();
+					}
+					long t0 = System.nanoTime();
+					int updated = sweep();
+					rebalancer.record(tNum, System.nanoTime()-t0);
+					if (e != null) {
+						int[] b = terrain.bounds();
+						e.thread = tNum;
+						e.step = count.get()+1;
+						e.visited = terrain.subLen(tNum);
+						e.updated = updated;
+						e.from = b[tNum];
+						e.to = b[tNum+1];
+						e.commit();
+					}
+					phase = "sweep";
+				}
+
+				if (!await(phase)) { return; }
+			}
+		}
+
+		/**
+		 * <p>Copies this thread's part of the front depths into the
+		 * {@link Snapshot}s being taken this copy stage.</p>
+		 */
+		private void copySnapshots() {
+			for (Snapshot s : snapshots) {
+				if (s.taking) {
+					int dimx = terrain.dimx();
+					water.frontDepth.copyTo(s.depth, tNum*dimx/numThreads, (tNum+1)*dimx/numThreads);
+				}
+			}
+		}
+
+		/**
+		 * <p>Arrives at the phaser and waits for the other threads.</p>
+		 *
+		 * @param phase name of the phase just finished (for {@link Events.Wait})
+		 * @return false if the simulation ended
+		 */
+		private boolean await(String phase) {
+			Events.Wait e = null;
+			if (Events.WAIT.isEnabled()) {
+				e = new Events.Wait();
+				e.begin();
+			}
+			boolean running = phaser.arriveAndAwaitAdvance() >= 0;
+			if (e != null) {
+				e.thread = tNum;
+				e.phase = phase;
+				e.commit();
+			}
+			return running;
+		}
+
+		/**
+		 * <p>Traverses this thread's section of the grid once.</p>
+		 * <p>Points in dry tiles (see {@link Depths#dry}) are passed over
+		 * without reading their depth. Only this thread writes the tiles
+		 * of points off the zone boundaries, so this is the same as
+		 * finding each one dry; points on the boundaries are checked under
+		 * the lock as before.</p>
+		 * @return number of points where water moved or ran off
+		 */
+		int sweep() {
+			if (jacobi) {
+				return sweepJacobi();
+			}
+			int updated = 0;
+			Activity act = activity;
+			Depths depth = water.depth; // Only swapped between steps
+
+			// Loop over this thread's zone of the grid
+			for(int i=0; i<terrain.subLen(tNum); i++) {
+				// Get coords of point to consider
+				terrain.getPermute(tNum, i, coords);
+				int x = coords[0], y = coords[1];
+				boolean locked = onThreadBoundary();
+				if (!locked && depth.dry(x, y)) { continue; }
+
+				if(onMapBoundary()) {
+					// Run off edge (with mutual exclusion on zone boundaries)
+					if (locked ? water.updateEdgeS(x, y) : water.updateEdge(x, y)) {
+						updated++;
+						if (act != null) { act.ranOff(tNum, x, y, locked); }
+					}
+					continue;
+				}
+
+				int moved;
+				if(locked) {
+					// Check & transfer water with mutual exclusion
+					moved = water.updateS(x, y);
+				}
+				else {
+					// Check & transfer water (no mutual exclusion)
+					moved = water.update(x, y);
+				}
+				if (moved >= 0) {
+					updated++;
+					if (act != null) { act.moved(tNum, x, y, moved, locked); }
+				}
+			}
+			return updated;
+		}
+
+		/**
+		 * <p>Traverses this thread's zone once in {@link jacobi} mode.</p>
+		 * <p>Every move depends only on the front buffers, so the zone is
+		 * traversed column by column rather than in permuted order, a tile
+		 * at a time. Tiles that were dry at the end of the last step are
+		 * skipped whole: none of their points can move water.</p>
+		 * @return number of points where water moved or ran off
+		 */
+		int sweepJacobi() {
+			int lo = terrain.bound(tNum), hi = terrain.bound(tNum+1);
+			int dimx = terrain.dimx(), dimy = terrain.dimy();
+			Depths front = water.frontDepth;
+			leftX = lo-1;
+			rightX = hi;
+
+			int updated = 0;
+			Activity act = activity;
+			for (int x=lo; x<hi; x++) {
+				for (int y=0; y<dimy; y++) {
+					if (front.dry(x, y)) {
+						y |= Depths.STRIP-1; // On to the next tile
+						continue;
+					}
+					if (x==0 || y==0 || x==dimx-1 || y==dimy-1) {
+						if (water.updateEdgeJ(x, y)) {
+							updated++;
+							if (act != null) { act.ranOff(tNum, x, y, false); }
+						}
+					}
+					else {
+						int moved = water.updateJ(x, y, lo, hi, left, right);
+						if (moved >= 0) {
+							updated++;
+							if (act != null) { act.moved(tNum, x, y, moved, false); }
+						}
+					}
+				}
+			}
+			return updated;
+		}
+
+		/**
+		 * <p>Adds the water this thread moved into neighbouring zones during
+		 * the last sweep ({@link jacobi} mode).</p>
+		 * <p>Only called between steps.</p>
+		 */
+		void addHalo() {
+			if (leftX >= 0) {
+				water.addColumn(leftX, left);
+			}
+			if (rightX >= 0 && rightX < terrain.dimx()) {
+				water.addColumn(rightX, right);
+			}
+			leftX = -1;
+			rightX = -1;
+		}
+
+		/**
+		 * <p>Determines if point is on the boundary of the map.</p>
+		 * @return true if point is on boundary, false otherwise
+		 */
+		boolean onMapBoundary() {
+			// Min and max values of x and y
+			return coords[0]==0 || coords[1]==0 ||
+					coords[0]==terrain.dimx()-1 || coords[1]==terrain.dimy()-1;
+		}
+
+		/**
+		 * <p>Determines if point is in region on boundary of thread zones</p>
+		 * <p>I.e. if point is in a region where multiple threads will be accessing it.
+		 * Zones can change between steps (see {@link Rebalancer}), so this asks
+		 * {@link Terrain} where they are.</p>
+		 * @return true if point is in boundary region, false otherwise
+		 */
+		boolean onThreadBoundary() {
+			return terrain.onThreadBoundary(tNum, coords[0]);
+		}
+	} // End of Simulate class
+}
@@ -0,0 +1,90 @@
+package flow;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>A copy of the water after a step, for a thread that works on it at
+ * its own pace ({@link History}, {@link StreamServer}).</p>
+ * <p>The reader asks for a copy with {@link request}, then waits until it
+ * is {@link ready}. The copy is made from the front buffers at the end of
+ * a step: while the simulation runs, by the simulation threads in the copy
+ * stage, each copying its own part as it brings its back buffers up to
+ * date (see {@link Water#copyBack}); while paused, between steps. Either
+ * way the front buffers can't be swapped meanwhile, and no lock is taken.
+ * The reader then has the copy to itself until it asks again, so encoding
+ * it holds up nothing. Steps taken while the reader is busy are not
+ * copied: a slow reader skips steps, and the simulation only pays for the
+ * copies asked for.</p>
+ * <p>Registered with {@link Simulation#addSnapshot}.</p>
+ *
+ * @author avk
+ */
+public class Snapshot {
+
+	/**
+	 * <p>The copy: depths as of {@link step}. Written by the simulation
+	 * between a {@link request} and {@link ready}.</p>
+	 */
+	final int[][] depth;
+	int step; // Step the copy holds
+
+	// Request state
+	private volatile boolean wanted;
+	private volatile boolean now; // Copy even if the water hasn't changed
+	private volatile boolean ready;
+	private volatile Thread reader;
+
+	/**
+	 * <p>Being copied in the current copy stage (simulation only).</p>
+	 */
+	boolean taking;
+
+	/**
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 */
+	Snapshot(int dimx, int dimy) {
+		depth = new int[dimx][dimy];
+	}
+
+	/**
+	 * <p>Asks for a copy. Call from the reader, which is unparked when the
+	 * copy is ready.</p>
+	 *
+	 * @param now copy the water as it is, even if it doesn't change (else
+	 * copy it after the next step, or change while paused)
+	 */
+	void request(boolean now) {
+		ready = false;
+		reader = Thread.currentThread();
+		this.now = now;
+		wanted = true;
+	}
+
+	/**
+	 * @return true once the copy asked for is made
+	 */
+	boolean ready() {
+		return ready;
+	}
+
+	/**
+	 * <p>Whether a copy should be made now (simulation only).</p>
+	 *
+	 * @param changed whether the front buffers just changed
+	 * @return true if wanted, and not already being made
+	 */
+	boolean wanted(boolean changed) {
+		return wanted && !taking && (changed || now);
+	}
+
+	/**
+	 * <p>Hands the copy to the reader (simulation only).</p>
+	 */
+	void done() {
+		taking = false;
+		wanted = false;
+		ready = true;
+		LockSupport.unpark(reader);
+	}
+}
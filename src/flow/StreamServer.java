@@ -0,0 +1,303 @@
+package flow;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Streams a running {@link Simulation} to remote viewers.</p>
+ * <p>Viewers ({@link StreamViewer}) connect over TCP. Each gets the
+ * terrain once, then a keyframe of the current water, then after every
+ * step only the depths that changed, encoded by {@link DeltaCodec}.
+ * Frames are encoded by a separate sender thread from a {@link Snapshot}
+ * of the water, which the simulation threads copy as part of a step, so
+ * they never wait on the network or the encoder, only on their share of
+ * that copy. If the sender falls behind (or <code>intervalMs</code> is
+ * set) it skips steps, and the next frame carries all the changes since
+ * the last one sent. No copy is made while no one is watching.</p>
+ * <p>Wire format (big-endian, as <code>DataOutputStream</code>):
+ * header <code>MAGIC, dimx, dimy</code>, then <code>dimx*dimy</code>
+ * float heights (column by column); then frames of
+ * <code>byte type ({@link KEY} or {@link DELTA}), int step, int length,
+ * length bytes</code>.</p>
+ * <p>Prints bytes per frame and encode time every {@link REPORT_EVERY}
+ * frames, with the total written to viewers so far (each viewer's copy
+ * counted, frames no one received not); the same figures are kept in
+ * fields for other code to read.</p>
+ *
+ * @author avk
+ */
+public class StreamServer implements Runnable {
+
+	// Protocol
+	final static int PORT = 4747;
+	final static int MAGIC = 0x466c6f77; // "Flow"
+	final static byte KEY = 1;
+	final static byte DELTA = 2;
+
+	final static int REPORT_EVERY = 100; // frames
+
+	Simulation sim;
+	int intervalMs; // Minimum time between frames (0 sends after every step)
+
+	private ServerSocket server;
+	private Thread sender;
+
+	// Connected viewers, and viewers waiting for a keyframe
+	private List<DataOutputStream> clients;
+	private Queue<DataOutputStream> joining;
+
+	// Depths the viewers have, the step being sent, and encoders for deltas and keyframes
+	private int[][] sent;
+	private Snapshot snap;
+	private DeltaCodec delta;
+	private DeltaCodec key;
+
+	// Metrics
+	long frames;
+	long bytesSent; // Frame bytes written to viewers (all of them), headers included
+	long encodeNanos;
+	double bytesPerFrame, encodeMsPerFrame; // Encoded delta size and time, over the last REPORT_EVERY frames
+
+	/**
+	 * <p>Opens the server socket (does not start serving).</p>
+	 *
+	 * @param sim Simulation to stream
+	 * @param port TCP port
+	 * @param intervalMs Minimum time between frames (ms), 0 for every step
+	 * @throws IOException if the port can't be opened
+	 */
+	StreamServer(Simulation sim, int port, int intervalMs) throws IOException {
+		this.sim = sim;
+		this.intervalMs = intervalMs;
+		server = new ServerSocket(port);
+		clients = new ArrayList<DataOutputStream>();
+		joining = new ConcurrentLinkedQueue<DataOutputStream>();
+
+		int dimx = sim.terrain.dimx(), dimy = sim.terrain.dimy();
+		sent = new int[dimx][dimy];
+		snap = new Snapshot(dimx, dimy);
+		delta = new DeltaCodec(dimx, dimy);
+		key = new DeltaCodec(dimx, dimy);
+	}
+
+	/**
+	 * <p>Starts accepting viewers and sending steps.</p>
+	 */
+	void start() {
+		sim.addSnapshot(snap);
+		sender = new Thread(this, "Stream-send");
+		sender.setDaemon(true);
+		sender.start();
+
+		Thread acceptor = new Thread(this::accept, "Stream-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * <p>Accepts viewers, sending each the terrain.</p>
+	 */
+	private void accept() {
+		Terrain t = sim.terrain;
+		while (!server.isClosed()) {
+			try {
+				Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1<<16));
+				out.writeInt(MAGIC);
+				out.writeInt(t.dimx());
+				out.writeInt(t.dimy());
+				for (int x=0; x<t.dimx(); x++) {
+					for (int y=0; y<t.dimy(); y++) {
+						out.writeFloat(t.height(x, y));
+					}
+				}
+				out.flush();
+				joining.add(out);
+				LockSupport.unpark(sender); // Send a keyframe now, even if paused
+				System.out.println("Viewer connected from "+s.getRemoteSocketAddress());
+			}
+			catch (IOException e) {
+				if (!server.isClosed()) {
+					System.out.println("Unable to accept viewer");
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Sends frames until the server is closed.</p>
+	 */
+	@Override
+	public void run() {
+		int lastStep = -1;
+		long lastSent = 0;
+		long reportBytes = 0, reportNanos = 0;
+		List<DataOutputStream> joined = new ArrayList<DataOutputStream>();
+
+		while (!server.isClosed()) {
+			if (intervalMs > 0) {
+				long wait = lastSent + intervalMs*1000000L - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(this, wait);
+				}
+			}
+
+			DataOutputStream j;
+			while ((j = joining.poll()) != null) {
+				joined.add(j);
+			}
+			if (clients.isEmpty() && joined.isEmpty()) {
+				LockSupport.park(this); // No one watching: wait for a viewer
+				continue;
+			}
+
+			// Copy of the next step (now, for a new viewer, even if paused)
+			snap.request(!joined.isEmpty());
+			while (!snap.ready() && !server.isClosed()) {
+				LockSupport.park(this);
+			}
+			if (server.isClosed()) { break; }
+			int step = snap.step;
+			long t0 = System.nanoTime();
+			delta.encode(sent, snap.depth);
+			long nanos = System.nanoTime()-t0;
+			if (delta.len == 0 && step == lastStep && joined.isEmpty()) { continue; }
+
+			// Deltas to viewers that are up to date, then keyframes to new ones
+			bytesSent += send(clients, DELTA, step, delta);
+			if (!joined.isEmpty()) {
+				key.encode(null, sent);
+				bytesSent += send(joined, KEY, step, key);
+				clients.addAll(joined);
+				joined.clear();
+			}
+			lastStep = step;
+			lastSent = System.nanoTime();
+
+			// Metrics
+			frames++;
+			encodeNanos += nanos;
+			reportBytes += 9 + delta.len;
+			reportNanos += nanos;
+			if (frames%REPORT_EVERY == 0) {
+				bytesPerFrame = (double)reportBytes/REPORT_EVERY;
+				encodeMsPerFrame = reportNanos/1e6/REPORT_EVERY;
+				System.out.printf("step %d: %d viewers, %.1f kB/frame (%.2f%% of raw depths), encode %.2f ms/frame, "
+						+ "%d kB sent%n", step, clients.size(), bytesPerFrame/1024,
+						100*bytesPerFrame/(4.0*sim.terrain.dim()), encodeMsPerFrame, bytesSent/1024);
+				reportBytes = 0;
+				reportNanos = 0;
+			}
+		}
+
+		for (DataOutputStream out : clients) {
+			try {
+				out.close();
+			}
+			catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * <p>Sends one frame to some viewers, dropping any that fail.</p>
+	 *
+	 * @param to viewers
+	 * @param type {@link KEY} or {@link DELTA}
+	 * @param step step number
+	 * @param codec encoder holding the frame
+	 * @return bytes written, over all the viewers it reached
+	 */
+	private long send(List<DataOutputStream> to, byte type, int step, DeltaCodec codec) {
+		long bytes = 0;
+		for (int i=to.size()-1; i>=0; i--) {
+			DataOutputStream out = to.get(i);
+			try {
+				out.writeByte(type);
+				out.writeInt(step);
+				out.writeInt(codec.len);
+				out.write(codec.buf, 0, codec.len);
+				out.flush();
+				bytes += 9 + codec.len;
+			}
+			catch (IOException e) {
+				System.out.println("Viewer disconnected");
+				to.remove(i);
+				try {
+					out.close();
+				}
+				catch (IOException err) {}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * <p>Stops serving and disconnects viewers.</p>
+	 */
+	void close() {
+		try {
+			server.close();
+		}
+		catch (IOException e) {}
+		sim.removeSnapshot(snap);
+		LockSupport.unpark(sender);
+	}
+
+	/**
+	 * <p>Runs a headless simulation and streams it.</p>
+	 *
+	 * @param args datafile [port] [intervalMs] [x,y ...]
+	 */
+	public static void main(String[] args) {
+		if(args.length < 1) {
+			System.out.println("Usage: java flow.StreamServer datafile [port] [intervalMs] [x,y ...]");
+			System.exit(0);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : PORT;
+		int interval = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+		Terrain terrain = new Terrain(args[0], FlowPanel.NUM_THREADS);
+		System.out.println(terrain.startupMetrics());
+		Water water = new Water(terrain);
+		Simulation sim = new Simulation(terrain, water, FlowPanel.NUM_THREADS);
+
+		sim.between(() -> {
+			if (args.length > 3) {
+				for (int i=3; i<args.length; i++) {
+					String[] p = args[i].split(",");
+					water.add(Integer.parseInt(p[0]), Integer.parseInt(p[1]),
+							FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+				}
+			}
+			else {
+				water.add(terrain.dimx()/2, terrain.dimy()/2, FlowPanel.DROP_DEPTH, FlowPanel.DROP_SIZE);
+			}
+		});
+
+		try {
+			StreamServer s = new StreamServer(sim, port, interval);
+			s.start();
+			sim.start();
+			sim.play();
+			System.out.println("Streaming on port "+port);
+			s.sender.join();
+		}
+		catch (IOException e) {
+			System.out.println("Unable to stream on port "+port);
+			e.printStackTrace();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
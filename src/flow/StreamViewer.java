@@ -0,0 +1,174 @@
+package flow;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+/**
+ * <p>Shows a simulation streamed by a {@link StreamServer}.</p>
+ * <p>Receives the terrain, then applies each frame of depth changes
+ * ({@link DeltaCodec}) to its own copy of the water and shows it with a
+ * {@link FlowPanel} in remote mode. No simulation runs locally.</p>
+ * <p>A frame is applied to the back buffers, which are then swapped to
+ * the front, and applied again to the new back buffers (which held the
+ * frame before), so both stay the same. Only the points a frame changes
+ * are written and recoloured; the whole grid is cleared only for a
+ * keyframe.</p>
+ * <p>Prints the received bandwidth every {@link StreamServer#REPORT_EVERY}
+ * frames.</p>
+ * <p>Usage: <code>java flow.StreamViewer host[:port]</code></p>
+ *
+ * @author avk
+ */
+public class StreamViewer implements Runnable {
+
+	private Socket socket;
+	private DataInputStream in;
+
+	Terrain terrain;
+	Water water;
+	FlowPanel fp;
+
+	// Metrics
+	long frames;
+	long bytesReceived; // Frame bytes, headers included
+
+	/**
+	 * <p>Connects and receives the terrain.</p>
+	 *
+	 * @param host server host
+	 * @param port server port
+	 * @throws IOException if the connection fails or the server sends something else
+	 */
+	StreamViewer(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1<<16));
+		if (in.readInt() != StreamServer.MAGIC) {
+			socket.close();
+			throw new IOException("Not a flow stream: "+host+":"+port);
+		}
+		int dimx = in.readInt(), dimy = in.readInt();
+		float[][] height = new float[dimx][dimy];
+		for (int x=0; x<dimx; x++) {
+			for (int y=0; y<dimy; y++) {
+				height[x][y] = in.readFloat();
+			}
+		}
+
+		terrain = new Terrain(height, 1);
+		water = new Water(terrain);
+		fp = new FlowPanel(terrain, water);
+	}
+
+	/**
+	 * <p>Receives and shows frames until the server disconnects.</p>
+	 */
+	@Override
+	public void run() {
+		byte[] buf = new byte[1024];
+		long reportBytes = 0, last = System.nanoTime();
+		try {
+			while (true) {
+				byte type = in.readByte();
+				int step = in.readInt();
+				int len = in.readInt();
+				if (len > buf.length) {
+					buf = new byte[Math.max(len, 2*buf.length)];
+				}
+				in.readFully(buf, 0, len);
+
+				// Apply to the back buffers and show them like a completed
+				// step, then bring the new back buffers up to the same frame
+				boolean key = type == StreamServer.KEY;
+				apply(key, buf, len);
+				water.swap(step);
+				fp.showRemote(step);
+				apply(key, buf, len);
+
+				frames++;
+				bytesReceived += 9 + len;
+				reportBytes += 9 + len;
+				if (frames%StreamServer.REPORT_EVERY == 0) {
+					long now = System.nanoTime();
+					double secs = (now-last)/1e9;
+					System.out.printf("step %d: %.1f frames/s, %.1f kB/s%n",
+							step, StreamServer.REPORT_EVERY/secs, reportBytes/1024.0/secs);
+					reportBytes = 0;
+					last = now;
+				}
+			}
+		}
+		catch (EOFException e) {
+			System.out.println("Server closed the stream");
+		}
+		catch (IOException e) {
+			System.out.println("Lost connection to server");
+			e.printStackTrace();
+		}
+		finally {
+			close();
+		}
+	}
+
+	/**
+	 * <p>Applies a frame to the back buffers of the water.</p>
+	 *
+	 * @param key whether the frame is a keyframe (changes from no water)
+	 * @param buf encoded changes
+	 * @param len number of bytes
+	 */
+	private void apply(boolean key, byte[] buf, int len) {
+		if (key) {
+			water.reset();
+		}
+		DeltaCodec.decode(buf, 0, len, water);
+	}
+
+	/**
+	 * <p>Disconnects.</p>
+	 */
+	void close() {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {}
+	}
+
+	/**
+	 * <p>Connects to a server and shows its simulation in a window.</p>
+	 *
+	 * @param args host[:port]
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java flow.StreamViewer host[:port]");
+			System.exit(0);
+		}
+		String[] hp = args[0].split(":");
+		int port = hp.length > 1 ? Integer.parseInt(hp[1]) : StreamServer.PORT;
+
+		try {
+			StreamViewer v = new StreamViewer(hp[0], port);
+			SwingUtilities.invokeLater(() -> {
+				JFrame frame = new JFrame("Waterflow - "+args[0]);
+				frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+				v.fp.setPreferredSize(new Dimension(v.terrain.dimx(), v.terrain.dimy()));
+				frame.setContentPane(v.fp);
+				frame.pack();
+				frame.setLocationRelativeTo(null);  // Center window on screen
+				frame.setVisible(true);
+			});
+			Thread receiver = new Thread(v, "Stream-receive");
+			receiver.start();
+		}
+		catch (IOException e) {
+			System.out.println("Unable to connect to "+args[0]);
+			e.printStackTrace();
+		}
+	}
+}
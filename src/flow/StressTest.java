@@ -0,0 +1,359 @@
+package flow;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Headless concurrency stress test of {@link Simulation}.</p>
+ * <p>Runs the simulation on small generated terrains with many threads
+ * and narrow zones, while randomly adding water, moving the zone
+ * boundaries, and pausing and resuming, with {@link Water#yieldOneIn}
+ * set so threads interleave more. Some configurations move water in
+ * {@link Water#flux} mode, where an update moves many units at once, or
+ * in {@link Simulation#jacobi} mode, which moves water across zone edges
+ * after the step.
+ * Between steps (while every thread is
+ * parked at the phaser) it checks that:</p>
+ * <ul>
+ * <li>no depth is negative,</li>
+ * <li>water is conserved: water on the grid equals water added minus
+ * water run off the edges (see {@link Water#audit}),</li>
+ * <li>each tile's total (see {@link Depths#tally}) is the water in its
+ * points, and region sums of the last step ({@link Water#waterIn}) match
+ * adding up its points,</li>
+ * <li>the thread zones still cover every point exactly once.</li>
+ * </ul>
+ * <p>An exception in a simulation thread, or a simulation that stops
+ * stepping for {@link TIMEOUT_MS}, also fails. Exits with status 1 on
+ * any failure, printing the seed so the run can be repeated.</p>
+ * <p>Usage: <code>java flow.StressTest [rounds] [seed]</code></p>
+ *
+ * @author avk
+ */
+public class StressTest {
+
+	// Defaults
+	final static int ROUNDS = 3;
+	final static int STEPS = 400;
+	final static long TIMEOUT_MS = 10000; // No step (or task) for this long is a hang
+	final static int YIELD_ONE_IN = 64;
+	final static int DROP_SIZE = 2; // Spread of added drops
+
+	/**
+	 * <p>Generated terrain shapes.</p>
+	 */
+	enum Shape {
+		/** Random heights: many small pits */
+		NOISE,
+		/** One deep basin: water piles up across zone boundaries */
+		BOWL,
+		/** Tilted plane: water keeps crossing zones and running off */
+		SLOPE,
+		/** Level: every neighbour ties */
+		FLAT
+	}
+
+	/**
+	 * <p>One test configuration.</p>
+	 */
+	private static class Config {
+		Shape shape;
+		int dimx, dimy, threads;
+		boolean flux; // Water.flux
+		boolean jacobi; // Simulation.jacobi
+
+		Config(Shape shape, int dimx, int dimy, int threads) {
+			this(shape, dimx, dimy, threads, false, false);
+		}
+
+		Config(Shape shape, int dimx, int dimy, int threads, boolean flux, boolean jacobi) {
+			this.shape = shape;
+			this.dimx = dimx;
+			this.dimy = dimy;
+			this.threads = threads;
+			this.flux = flux;
+			this.jacobi = jacobi;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %dx%d, %d threads%s%s", shape, dimx, dimy, threads,
+					flux ? ", flux" : "", jacobi ? ", Jacobi" : "");
+		}
+	}
+
+	// Configurations, from wide zones to zones a few columns wide
+	private final static Config[] CONFIGS = {
+		new Config(Shape.NOISE, 64, 48, 2),
+		new Config(Shape.BOWL, 64, 48, 4),
+		new Config(Shape.SLOPE, 48, 40, 8),
+		new Config(Shape.FLAT, 40, 32, 8),
+		new Config(Shape.BOWL, 40, 40, 12),
+		new Config(Shape.NOISE, 40, 24, 16),
+		new Config(Shape.BOWL, 64, 48, 4, true, false),
+		new Config(Shape.SLOPE, 40, 32, 12, true, false),
+		new Config(Shape.NOISE, 40, 24, 16, false, true),
+		new Config(Shape.BOWL, 64, 48, 8, true, true),
+	};
+
+	// First failure seen in the current run (null if none)
+	private static volatile String failure;
+
+	/**
+	 * <p>Runs every configuration <code>rounds</code> times.</p>
+	 *
+	 * @param args [rounds] [seed]
+	 */
+	public static void main(String[] args) {
+		int rounds = ROUNDS;
+		long seed = System.nanoTime();
+		try {
+			if (args.length > 0) { rounds = Integer.parseInt(args[0]); }
+			if (args.length > 1) { seed = Long.parseLong(args[1]); }
+		}
+		catch (NumberFormatException e) {
+			System.out.println("Usage: java flow.StressTest [rounds] [seed]");
+			System.exit(2);
+		}
+
+		// A simulation thread dying is a failure (the others then hang at the phaser)
+		Thread.setDefaultUncaughtExceptionHandler((th, e) -> {
+			fail(th.getName()+" threw "+e);
+			e.printStackTrace();
+		});
+
+		Random seeds = new Random(seed);
+		int failed = 0, total = 0;
+		for (int r=0; r<rounds; r++) {
+			for (Config c : CONFIGS) {
+				long s = seeds.nextLong();
+				String result = run(c, s);
+				total++;
+				if (result != null) {
+					failed++;
+					System.out.printf("FAIL %s (seed %d): %s%n", c, s, result);
+				}
+				else {
+					System.out.printf("ok   %s%n", c);
+				}
+			}
+		}
+
+		System.out.printf("%d of %d runs passed (seed %d)%n", total-failed, total, seed);
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * <p>Runs one configuration for {@link STEPS} steps.</p>
+	 *
+	 * @param c configuration
+	 * @param seed random seed (terrain and events)
+	 * @return description of the first failure, or null if it passed
+	 */
+	static String run(Config c, long seed) {
+		failure = null;
+		Random rnd = new Random(seed);
+
+		Terrain terrain = new Terrain(generate(c, rnd), c.threads);
+		Water water = new Water(terrain);
+		water.audit = true;
+		water.flux = c.flux;
+		water.yieldOneIn = YIELD_ONE_IN;
+		Simulation sim = new Simulation(terrain, water, c.threads);
+		sim.jacobi = c.jacobi;
+		sim.start();
+		sim.play();
+
+		try {
+			int last = -1;
+			long lastProgress = System.currentTimeMillis();
+			while (sim.count.get() < STEPS && failure == null) {
+				int event = rnd.nextInt(10);
+				if (event < 4) {
+					// Drop near (and sometimes across) a zone boundary
+					int x = 1+DROP_SIZE+rnd.nextInt(c.dimx-2-2*DROP_SIZE);
+					int y = 1+DROP_SIZE+rnd.nextInt(c.dimy-2-2*DROP_SIZE);
+					int d = 1+rnd.nextInt(8);
+					sim.between(() -> water.add(x, y, d, DROP_SIZE));
+				}
+				else if (event < 6) {
+					int[] b = randomBounds(c.dimx, c.threads, rnd);
+					sim.between(() -> terrain.setBounds(b));
+				}
+				else if (event == 6) {
+					sim.pause();
+					Thread.sleep(rnd.nextInt(2*Simulation.PAUSE_MS));
+					sim.play();
+				}
+				sim.between(() -> check(terrain, water, c));
+				Thread.sleep(rnd.nextInt(3));
+
+				// Watch for a hang
+				int now = sim.count.get();
+				if (now != last) {
+					last = now;
+					lastProgress = System.currentTimeMillis();
+				}
+				else if (System.currentTimeMillis()-lastProgress > TIMEOUT_MS) {
+					fail("no step for "+TIMEOUT_MS+" ms at step "+now);
+				}
+			}
+
+			// Final check, paused, must still be run
+			sim.pause();
+			CountDownLatch done = new CountDownLatch(1);
+			sim.between(() -> {
+				check(terrain, water, c);
+				done.countDown();
+			});
+			if (!done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				fail("tasks not run for "+TIMEOUT_MS+" ms while paused");
+			}
+		}
+		catch (InterruptedException e) {
+			fail("interrupted");
+		}
+		finally {
+			sim.end();
+		}
+		return failure;
+	}
+
+	/**
+	 * <p>Checks invariants. Run between steps, so all threads are parked
+	 * and the back buffers hold the latest water.</p>
+	 *
+	 * @param t terrain
+	 * @param w water
+	 * @param c configuration
+	 */
+	private static void check(Terrain t, Water w, Config c) {
+		long sum = 0;
+		for (int x=0; x<t.dimx(); x++) {
+			for (int y=0; y<t.dimy(); y++) {
+				if (w.depth.get(x, y) < 0) {
+					fail("negative depth "+w.depth.get(x, y)+" at "+x+","+y);
+					return;
+				}
+				sum += w.depth.get(x, y);
+			}
+		}
+		long expected = (long)w.waterAdded()-w.waterRemoved();
+		if (sum != expected) {
+			fail("water not conserved: "+sum+" on grid, expected "+expected
+					+" (added "+w.waterAdded()+", removed "+w.waterRemoved()+")");
+			return;
+		}
+
+		// Tile totals, then region sums (edges not on tile boundaries)
+		Depths d = w.depth;
+		for (int x=0; x<d.dimx; x++) {
+			for (int s=0; s<d.strips; s++) {
+				long tile = 0;
+				for (int y=s*Depths.STRIP; y<Math.min((s+1)*Depths.STRIP, d.dimy); y++) {
+					tile += d.get(x, y);
+				}
+				if (tile != d.sums[x*d.strips + s]) {
+					fail("tile "+x+","+s+" totals "+d.sums[x*d.strips + s]+", holds "+tile);
+					return;
+				}
+			}
+		}
+		Depths f = w.frontDepth; // What Water#waterIn sums
+		int[][] rects = {{0, 0, f.dimx, f.dimy}, {1, 3, f.dimx/2, f.dimy-5},
+				{f.dimx/3, f.dimy/4, f.dimx-2, f.dimy/2+1}, {2, 7, 9, 8}};
+		for (int[] r : rects) {
+			long cells = 0;
+			for (int x=r[0]; x<r[2]; x++) {
+				for (int y=r[1]; y<r[3]; y++) {
+					cells += f.get(x, y);
+				}
+			}
+			long summed = w.waterIn(r[0], r[1], r[2], r[3]);
+			if (summed != cells) {
+				fail("region "+java.util.Arrays.toString(r)+" sums to "+summed+", holds "+cells);
+				return;
+			}
+		}
+
+		int covered = 0;
+		for (int i=0; i<c.threads; i++) {
+			covered += t.subLen(i);
+		}
+		if (covered != t.dim()) {
+			fail("zones cover "+covered+" points of "+t.dim());
+		}
+	}
+
+	/**
+	 * <p>Records a failure (keeps the first).</p>
+	 *
+	 * @param msg what went wrong
+	 */
+	private static synchronized void fail(String msg) {
+		if (failure == null) {
+			failure = msg;
+		}
+	}
+
+	/**
+	 * <p>Random thread zones, each at least one column wide.</p>
+	 *
+	 * @param dimx number of columns
+	 * @param n number of zones
+	 * @param rnd random source
+	 * @return first column of each zone, plus <code>dimx</code> at the end
+	 */
+	static int[] randomBounds(int dimx, int n, Random rnd) {
+		// Choose n-1 distinct cut points in [1, dimx)
+		int[] b = new int[n+1];
+		boolean[] cut = new boolean[dimx];
+		for (int i=1; i<n; i++) {
+			int x;
+			do {
+				x = 1+rnd.nextInt(dimx-1);
+			} while (cut[x]);
+			cut[x] = true;
+		}
+		int i = 1;
+		for (int x=1; x<dimx; x++) {
+			if (cut[x]) {
+				b[i++] = x;
+			}
+		}
+		b[n] = dimx;
+		return b;
+	}
+
+	/**
+	 * <p>Generates terrain heights for a configuration.</p>
+	 *
+	 * @param c configuration
+	 * @param rnd random source
+	 * @return heights, indexed <code>[x][y]</code>
+	 */
+	static float[][] generate(Config c, Random rnd) {
+		float[][] h = new float[c.dimx][c.dimy];
+		float cx = c.dimx/2f, cy = c.dimy/2f;
+		for (int x=0; x<c.dimx; x++) {
+			for (int y=0; y<c.dimy; y++) {
+				switch (c.shape) {
+				case NOISE:
+					h[x][y] = rnd.nextFloat();
+					break;
+				case BOWL:
+					h[x][y] = ((x-cx)*(x-cx)+(y-cy)*(y-cy))*0.01f + rnd.nextFloat()*0.01f;
+					break;
+				case SLOPE:
+					h[x][y] = x*0.05f + rnd.nextFloat()*0.02f;
+					break;
+				case FLAT:
+					h[x][y] = 1f;
+					break;
+				}
+			}
+		}
+		return h;
+	}
+}
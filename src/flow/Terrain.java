@@ -2,44 +2,222 @@ package flow;
 
 import java.io.File;
 import java.awt.image.*;
-import java.awt.Color;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Scanner;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 public class Terrain {
 
 	// No fields are changed externally
 
-	float [][] height; // Regular grid of height values
+	float [][] height; // Regular grid of height values (null once quantized)
 	int dimx, dimy, dim; // Data dimensions
 	BufferedImage img; // Grayscale image for displaying the terrain top-down
 
 	/**
 	 * <p>Permuted lists of indexes corresponding to points on the grid.</p> 
 	 */
-	private List<Integer>[] permute;
+	private int[][] permute;
 	private int n; // Number of threads
 
+	/**
+	 * <p>Thread zones: thread <code>i</code> is responsible for columns
+	 * <code>bounds[i]</code> to <code>bounds[i+1]-1</code>.</p>
+	 */
+	private volatile int[] bounds;
+
+	/**
+	 * <p>Neighbours of each point sorted by height (built once loaded).</p>
+	 */
+	DescentTable descent;
+
+	/**
+	 * <p>Heights quantized to 16 bits, if {@link height16} was set when
+	 * loaded: height is <code>qoffset + qscale*qheight[x][y]</code>.
+	 * Replaces {@link height}, halving its memory (use {@link height(int,int)}
+	 * to read heights either way).</p>
+	 */
+	char[][] qheight;
+	float qoffset, qscale;
+	float qunit; // One unit of water depth (0.01) in quantized steps
+
+	// Quantize heights to 16 bits once loaded
+	static boolean height16 = false;
+
+	// Seed for the permuted lists (null: different every run)
+	static Long seed = null;
+
+	// Shade terrain image by slope (lit from the top left)
+	static boolean hillshade = false;
+	final static float SHADE_Z = 100f; // Vertical exaggeration of normalized heights
+
+	// Startup metrics (ns)
+	long readNanos, imageNanos, permuteNanos;
+	long firstNanos; // Until the first rows could be shown
+
+	// Progressive loading
+	private String fileName;
+	private Scanner sc; // Open while rows are still to be read
+	private int rowsRead;
+	private float minSoFar, maxSoFar; // Height range of rows read so far
+	private long openedAt;
+
 	/**
 	 * <p>Reads terrain data from file, generates permuted index lists.</p>
 	 * 
 	 * @param filepath Path of file containing terrain data.
 	 * @param numThreads Number of threads used to traverse the grid
 	 */
-	@SuppressWarnings("unchecked")
 	Terrain(String filepath, int numThreads) {
-		readData(filepath);
+		this(filepath, numThreads, false);
+	}
+
+	/**
+	 * <p>Reads terrain data from file, optionally only the header.</p>
+	 * <p>If <code>progressive</code>, only the grid dimensions are read;
+	 * call {@link readRows} until it returns true, then {@link finish}
+	 * (e.g. from a background thread) before simulating.</p>
+	 * 
+	 * @param filepath Path of file containing terrain data.
+	 * @param numThreads Number of threads used to traverse the grid
+	 * @param progressive Whether to defer reading the heights
+	 */
+	Terrain(String filepath, int numThreads, boolean progressive) {
+		if (progressive) {
+			readHeader(filepath);
+		}
+		else {
+			readData(filepath);
+		}
+		dim = dimx*dimy;
+		n = numThreads;
+
+		permute = new int[n][];
+
+		// Equal zones to start with
+		bounds = new int[n+1];
+		for(int i=0; i<=n; i++) {
+			bounds[i] = i*dimx/n;
+		}
+		if (!progressive) {
+			long t0 = System.nanoTime();
+			genPermute(); // Generate permuted lists
+			permuteNanos = System.nanoTime()-t0;
+			genDescent();
+			if (height16) {
+				quantize();
+			}
+		}
+	}
+
+	/**
+	 * <p>Uses given heights instead of reading a file.</p>
+	 * <p>For generated terrains (see {@link StressTest}).</p>
+	 *
+	 * @param height Regular grid of height values, indexed <code>[x][y]</code>
+	 * @param numThreads Number of threads used to traverse the grid
+	 */
+	Terrain(float[][] height, int numThreads) {
+		this.height = height;
+		dimx = height.length;
+		dimy = height[0].length;
 		dim = dimx*dimy;
+		rowsRead = dimy;
 		n = numThreads;
+		permute = new int[n][];
 
-		/* I use this in a private method that only adds the correct
-		 * type, so i just suppress this warning 
-		 */
-		permute = new List[n];
-		genPermute(); // Generate permuted lists
+		bounds = new int[n+1];
+		for(int i=0; i<=n; i++) {
+			bounds[i] = i*dimx/n;
+		}
+		deriveImage();
+		genPermute();
+		genDescent();
+		if (height16) {
+			quantize();
+		}
+	}
+
+	/**
+	 * <p>Summary of how long loading took.</p>
+	 * @return one line of startup timings
+	 */
+	String startupMetrics() {
+		return String.format("Startup (%dx%d): first rows %d ms, read %d ms, image %d ms, permute %d ms%n%s",
+				dimx, dimy, firstNanos/1000000, readNanos/1000000, imageNanos/1000000, permuteNanos/1000000,
+				descent == null ? "No descent table" : descent.metrics());
+	}
+
+	/**
+	 * <p>Builds the {@link DescentTable} for this terrain.</p>
+	 */
+	void genDescent() {
+		if (height != null) {
+			descent = new DescentTable(height, dimx, dimy);
+		}
+	}
+
+	/**
+	 * <p>Replaces the heights with 16-bit quantized ones ({@link qheight}).</p>
+	 * <p>Heights are rounded to 65536 levels spread evenly over their range,
+	 * which keeps their order, so the {@link DescentTable} (built from the
+	 * full heights first) still holds. Only the image, the descent table and
+	 * the zones need the full heights, and they are done by now.</p>
+	 */
+	void quantize() {
+		float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+		for (float[] col : height) {
+			for (float h : col) {
+				lo = Math.min(lo, h);
+				hi = Math.max(hi, h);
+			}
+		}
+		float offset = lo, scale = hi > lo ? (hi - lo)/Character.MAX_VALUE : 1f;
+
+		char[][] q = new char[dimx][dimy];
+		float[][] h = height;
+		IntStream.range(0, dimx).parallel().forEach(x -> {
+			for (int y=0; y<dimy; y++) {
+				int v = Math.round((h[x][y] - offset)/scale);
+				q[x][y] = (char)Math.max(0, Math.min(v, Character.MAX_VALUE));
+			}
+		});
+
+		qoffset = offset;
+		qscale = scale;
+		qunit = 0.01f/scale;
+		qheight = q;
+		height = null;
+	}
+
+	/**
+	 * <p>Height of a point, whether or not heights are quantized.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return height
+	 */
+	float height(int x, int y) {
+		char[][] q = qheight;
+		return q != null ? qoffset + qscale*q[x][y] : height[x][y];
+	}
+
+	/**
+	 * @return bytes used per point by the heights
+	 */
+	int heightBytes() {
+		return qheight != null ? 2 : 4;
+	}
+
+	/**
+	 * <p>Fraction of the rows read so far.</p>
+	 * @return progress in [0,1]
+	 */
+	float progress() {
+		return dimy == 0 ? 1f : (float)rowsRead/dimy;
 	}
 
 	/**
@@ -91,18 +269,93 @@ public class Terrain {
 	/**
 	 * <p>Generates permuted lists ({@link permute}) of linear index positions</p>
 	 * <p>Permuted lists allow the grid to be traversed randomly, which helps
-	 * the water flow simulation to be smoother.</p>
+	 * the water flow simulation to be smoother. Each list covers one thread
+	 * zone (see {@link bounds}).</p>
+	 * <p>If {@link seed} is set, each zone's list is shuffled from that
+	 * seed and the zone number, so a single-threaded run is repeatable.</p>
 	 */
 	void genPermute() {
-		for(int i=0; i<n; i++) {
-			permute[i] = new ArrayList<Integer>();
-			for(int idx=(int)(i*dim/n); idx<(int)((i+1)*dim/n); idx++) {
-				permute[i].add(idx);
+		Long s = seed;
+		// Lists are independent, so build them in parallel
+		IntStream.range(0, n).parallel().forEach(i -> {
+			int first = bounds[i]*dimy;
+			int[] l = new int[(bounds[i+1]-bounds[i])*dimy];
+			for(int k=0; k<l.length; k++) {
+				l[k] = first+k;
 			}
-			java.util.Collections.shuffle (permute[i]);
+			shuffle(l, s == null ? ThreadLocalRandom.current() : new Random(s + i));
+			permute[i] = l;
+		});
+	}
+
+	/**
+	 * <p>Shuffles a list in place (Fisher-Yates).</p>
+	 *
+	 * @param l list to shuffle
+	 * @param rnd random source
+	 */
+	static void shuffle(int[] l, Random rnd) {
+		for(int k=l.length-1; k>0; k--) {
+			int j = rnd.nextInt(k+1);
+			int tmp = l[k];
+			l[k] = l[j];
+			l[j] = tmp;
 		}
 	}
 
+	/**
+	 * <p>Accessor for thread zones.</p>
+	 * @return first column of each zone, plus <code>dimx</code> at the end
+	 */
+	int[] bounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * <p>Edge of a thread zone (without copying the zones).</p>
+	 * @param i zone number, or <code>n</code> for the end of the last zone
+	 * @return first column of zone <code>i</code> (<code>dimx</code> for <code>n</code>)
+	 */
+	int bound(int i) {
+		return bounds[i];
+	}
+
+	/**
+	 * <p>Whether the thread zones are the given ones (without copying them).</p>
+	 * @param b first column of each zone, plus <code>dimx</code> at the end
+	 * @return true if the zones are the same
+	 */
+	boolean hasBounds(int[] b) {
+		return java.util.Arrays.equals(b, bounds);
+	}
+
+	/**
+	 * <p>Changes the thread zones and regenerates the permuted lists.</p>
+	 * <p>Must only be called between steps, when no thread is using
+	 * the lists.</p>
+	 * 
+	 * @param b first column of each zone, plus <code>dimx</code> at the end
+	 */
+	void setBounds(int[] b) {
+		bounds = b.clone();
+		genPermute();
+	}
+
+	/**
+	 * <p>Determines if a column is on the boundary of a thread's zone.</p>
+	 * <p>A thread updating a point reads and writes the points next to it,
+	 * so the two columns at each side of a zone can be accessed by the
+	 * neighbouring thread as well, and need mutual exclusion.</p>
+	 * 
+	 * @param pIdx thread number
+	 * @param x column
+	 * @return true if column is in boundary region, false otherwise
+	 */
+	boolean onThreadBoundary(int pIdx, int x) {
+		int[] b = bounds;
+		return (pIdx > 0 && x <= b[pIdx]+1) || (pIdx < n-1 && x >= b[pIdx+1]-2);
+	}
+
 	/**
 	 * <p>Finds the location on grid for a given linear index.<br>
 	 * (Depends on which thread wants to know)</p>
@@ -112,46 +365,104 @@ public class Terrain {
 	 * @param loc location on grid (pass in empty array)
 	 */
 	void getPermute(int pIdx, int i, int [] loc) {
-		locate(permute[pIdx].get(i), loc);
+		locate(permute[pIdx][i], loc);
 	}
 
 	/**
-	 * <p>Accessor for length of each {@link permute} list.</p>
+	 * <p>Accessor for length of a {@link permute} list.</p>
 	 * <p>{@link getPermute} takes an index, which is the index of one 
 	 * list, not the whole grid. So a calling function needs to know the
-	 * length of the lists. (They are all equal length).</p>
+	 * length of the lists. (They differ once zones are rebalanced).</p>
 	 * 
-	 * @return length of each {@link permute} list
+	 * @param pIdx thread number
+	 * @return length of the {@link permute} list
 	 */
-	int subLen() {
-		return permute[0].size();
+	int subLen(int pIdx) {
+		return permute[pIdx].length;
 	}
 
 	/**
 	 * <p>Converts height values into grayscale color and populates image.</p>
+	 * <p>Both passes (height range, then color) are split across columns and
+	 * run in parallel, writing pixels straight into the image's raster.
+	 * If {@link hillshade} is set, each pixel is also darkened by how far
+	 * its slope faces away from the light, in the same pass.</p>
 	 */
 	void deriveImage()
 	{
-		img = new BufferedImage(dimx, dimy, BufferedImage.TYPE_INT_ARGB);
+		Events.Image e = null;
+		if (Events.IMAGE.isEnabled()) {
+			e = new Events.Image();
+			e.begin();
+		}
+		if (img == null) {
+			img = new BufferedImage(dimx, dimy, BufferedImage.TYPE_INT_ARGB);
+		}
+		int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+
+		// Determine range of heights (one min/max per chunk of columns)
+		int chunks = Math.min(dimx, 4*Runtime.getRuntime().availableProcessors());
+		float[] maxc = new float[chunks], minc = new float[chunks];
+		IntStream.range(0, chunks).parallel().forEach(c -> {
+			float maxh = -10000.0f, minh = 10000.0f;
+			for(int x=c*dimx/chunks; x < (c+1)*dimx/chunks; x++)
+				for(int y=0; y < dimy; y++) {
+					float h = height[x][y];
+					if(h > maxh)
+						maxh = h;
+					if(h < minh)
+						minh = h;
+				}
+			maxc[c] = maxh;
+			minc[c] = minh;
+		});
 		float maxh = -10000.0f, minh = 10000.0f;
+		for(int c=0; c < chunks; c++) {
+			maxh = Math.max(maxh, maxc[c]);
+			minh = Math.min(minh, minc[c]);
+		}
+		float lo = minh, range = maxh - minh;
 
-		// Determine range of heights
-		for(int x=0; x < dimx; x++)
-			for(int y=0; y < dimy; y++) {
-				float h = height[x][y];
-				if(h > maxh)
-					maxh = h;
-				if(h < minh)
-					minh = h;
-			}
+		IntStream.range(0, chunks).parallel().forEach(c -> {
+			for(int x=c*dimx/chunks; x < (c+1)*dimx/chunks; x++)
+				for(int y=0; y < dimy; y++) {
+					// Find normalized height value in range
+					float val = (height[x][y] - lo) / range;
+					if (hillshade) {
+						val *= shade(x, y, range);
+					}
+					// Same rounding as java.awt.Color(float,float,float,float)
+					int g = (int)(val*255 + 0.5f);
+					px[y*dimx + x] = (255<<24) | (g<<16) | (g<<8) | g;
+				}
+		});
 
-		for(int x=0; x < dimx; x++)
-			for(int y=0; y < dimy; y++) {
-				// Find normalized height value in range
-				float val = (height[x][y] - minh) / (maxh - minh);
-				Color col = new Color(val, val, val, 1.0f);
-				img.setRGB(x, y, col.getRGB());
-			}
+		if (e != null) {
+			e.width = dimx;
+			e.height = dimy;
+			e.hillshade = hillshade;
+			e.commit();
+		}
+	}
+
+	/**
+	 * <p>Lambertian shading of a point, lit from the top left at 45 degrees.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param range Height range of terrain (to normalize slopes)
+	 * @return brightness factor in [0,1]
+	 */
+	private float shade(int x, int y, float range) {
+		// Central differences, one-sided at the edges
+		int x0 = Math.max(x-1, 0), x1 = Math.min(x+1, dimx-1);
+		int y0 = Math.max(y-1, 0), y1 = Math.min(y+1, dimy-1);
+		float dx = SHADE_Z*(height[x1][y] - height[x0][y])/(range*Math.max(x1-x0, 1));
+		float dy = SHADE_Z*(height[x][y1] - height[x][y0])/(range*Math.max(y1-y0, 1));
+
+		// Normal (-dx,-dy,1) against light (-1,-1,sqrt2)/2
+		float dot = (dx + dy + 1.41421356f)/(2f*(float)Math.sqrt(dx*dx + dy*dy + 1));
+		return Math.max(dot, 0f);
 	}
 
 	/**
@@ -159,8 +470,30 @@ public class Terrain {
 	 * @param fileName Path of file
 	 */
 	void readData(String fileName){ 
+		readHeader(fileName);
+		while (!readRows(dimy)) {}
+
+		// Generate grayscale heightfield image
+		long t0 = System.nanoTime();
+		if (height != null) {
+			deriveImage();
+		}
+		imageNanos = System.nanoTime()-t0;
+	}
+
+	/**
+	 * <p>Opens terrain file and reads the grid dimensions.</p>
+	 * <p>Allocates the height grid and a transparent image, which
+	 * {@link readRows} fills in.</p>
+	 * @param fileName Path of file
+	 */
+	void readHeader(String fileName) {
+		this.fileName = fileName;
+		openedAt = System.nanoTime();
+		minSoFar = 10000.0f;
+		maxSoFar = -10000.0f;
 		try{ 
-			Scanner sc = new Scanner(new File(fileName));
+			sc = new Scanner(new File(fileName));
 			// Specify locale so that interpretation of decimal point is the same on all machines
 			sc.useLocale(Locale.US);
 			
@@ -173,24 +506,106 @@ public class Terrain {
 
 			// Populate height grid
 			height = new float[dimx][dimy];
-
-			for(int y = 0; y < dimy; y++){
-				for(int x = 0; x < dimx; x++)	
-					height[x][y] = sc.nextFloat();
-			}
-
-			sc.close(); 
-
-			// Generate grayscale heightfield image
-			deriveImage();
+			img = new BufferedImage(dimx, dimy, BufferedImage.TYPE_INT_ARGB);
 		} 
 		catch (IOException e){ 
 			System.out.println("Unable to open input file "+fileName);
 			e.printStackTrace();
+			sc = null;
 		}
 		catch (java.util.InputMismatchException e){ 
 			System.out.println("Malformed input file "+fileName);
 			e.printStackTrace();
+			sc.close();
+			sc = null;
+		}
+		readNanos = System.nanoTime()-openedAt;
+	}
+
+	/**
+	 * <p>Reads the next rows of heights from file.</p>
+	 * <p>The rows are drawn into the terrain image straight away, scaled to
+	 * the height range seen so far, so the terrain appears while it is
+	 * still loading. {@link deriveImage} redraws it with the full range
+	 * once everything is read.</p>
+	 * 
+	 * @param count maximum number of rows to read
+	 * @return true when there are no more rows to read (or reading failed)
+	 */
+	boolean readRows(int count) {
+		if (sc == null) { return true; }
+
+		Events.Read ev = null;
+		if (Events.READ.isEnabled()) {
+			ev = new Events.Read();
+			ev.begin();
+		}
+		long t0 = System.nanoTime();
+		int first = rowsRead;
+		try {
+			for(int y = first; y < Math.min(first+count, dimy); y++){
+				for(int x = 0; x < dimx; x++) {
+					float h = sc.nextFloat();
+					height[x][y] = h;
+					if(h > maxSoFar)
+						maxSoFar = h;
+					if(h < minSoFar)
+						minSoFar = h;
+				}
+				rowsRead++;
+			}
+		}
+		catch (java.util.NoSuchElementException e){ // Includes InputMismatchException
+			System.out.println("Malformed input file "+fileName);
+			e.printStackTrace();
+			rowsRead = dimy;
+		}
+		if (ev != null) {
+			ev.file = fileName;
+			ev.first = first;
+			ev.rows = rowsRead-first;
+			ev.commit();
+		}
+
+		// Provisional image of new rows
+		int[] px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		float range = Math.max(maxSoFar - minSoFar, 1e-6f);
+		for(int y = first; y < rowsRead; y++){
+			for(int x = 0; x < dimx; x++) {
+				float val = (height[x][y] - minSoFar) / range;
+				int g = (int)(val*255 + 0.5f);
+				px[y*dimx + x] = (255<<24) | (g<<16) | (g<<8) | g;
+			}
+		}
+
+		long now = System.nanoTime();
+		readNanos += now-t0;
+		if (first == 0) {
+			firstNanos = now-openedAt;
+		}
+
+		if (rowsRead < dimy) { return false; }
+		sc.close();
+		sc = null;
+		return true;
+	}
+
+	/**
+	 * <p>Completes a progressive load.</p>
+	 * <p>Redraws the terrain image with the full height range, generates
+	 * the permuted lists and builds the descent table, all in parallel.</p>
+	 */
+	void finish() {
+		long t0 = System.nanoTime();
+		deriveImage();
+		imageNanos = System.nanoTime()-t0;
+
+		t0 = System.nanoTime();
+		genPermute();
+		permuteNanos = System.nanoTime()-t0;
+		genDescent();
+		if (height16) {
+			quantize();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,202 @@
+package flow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>Grid of 4-byte cells stored in a memory-mapped file.</p>
+ * <p>The grid is split into square tiles of <code>tile</code> x <code>tile</code>
+ * cells, laid out tile after tile in the file, so that one tile is one contiguous
+ * region. Tiles are mapped on demand, and held until the user says which
+ * to keep ({@link release}). Mappings are found by tile number in an array,
+ * and the last one used is remembered, so a cell access is an index and
+ * a compare, not a lookup.</p>
+ * <p>Java can't unmap a buffer explicitly: a released mapping stays mapped
+ * until the garbage collector frees it, and its pages until the OS pages
+ * them out. So {@link residentTiles} counts the mappings held, not the
+ * memory the process uses.</p>
+ * <p>Used by {@link OutOfCore} for grids that do not fit in memory.</p>
+ *
+ * @author avk
+ */
+public class TileFile {
+
+	int dimx, dimy; // Grid dimensions
+	int tile; // Tile side length (cells)
+	int tilesX, tilesY; // Number of tiles in each direction
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer[] mapped; // By tile number, null if not held
+	private int held; // Mappings held
+
+	// Last tile used, and its mapping
+	private int lastTile = -1;
+	private MappedByteBuffer last;
+
+	// Paging stats
+	long pageIns; // Number of times a tile was mapped
+	long evictions; // Number of times a tile was released
+
+	/**
+	 * <p>Creates (or overwrites) a tile file of the given dimensions.</p>
+	 * <p>The file is zero-filled (sparse, on Linux).</p>
+	 *
+	 * @param f File to store the grid in
+	 * @param dimx x-dimension of grid
+	 * @param dimy y-dimension of grid
+	 * @param tile Tile side length
+	 * @throws IOException if the file cannot be created
+	 */
+	TileFile(File f, int dimx, int dimy, int tile) throws IOException {
+		this.dimx = dimx;
+		this.dimy = dimy;
+		this.tile = tile;
+		tilesX = (dimx + tile - 1)/tile;
+		tilesY = (dimy + tile - 1)/tile;
+
+		file = new RandomAccessFile(f, "rw");
+		file.setLength(0);
+		file.setLength((long)tilesX*tilesY*tileBytes());
+		channel = file.getChannel();
+		mapped = new MappedByteBuffer[tilesX*tilesY];
+	}
+
+	/**
+	 * <p>Size of one tile in the file.</p>
+	 * @return bytes per tile
+	 */
+	long tileBytes() {
+		return (long)tile*tile*4;
+	}
+
+	/**
+	 * <p>Number of tile mappings held (see the class comment).</p>
+	 * @return held mapping count
+	 */
+	int residentTiles() {
+		return held;
+	}
+
+	/**
+	 * <p>Releases the mappings of tiles that aren't to be kept.</p>
+	 *
+	 * @param keep whether to keep each tile (by tile number)
+	 */
+	void release(boolean[] keep) {
+		for (int t=0; t<mapped.length; t++) {
+			if (mapped[t] != null && !keep[t]) {
+				mapped[t] = null;
+				held--;
+				evictions++;
+			}
+		}
+		lastTile = -1;
+		last = null;
+	}
+
+	/**
+	 * <p>Tile number containing the given point.</p>
+	 *
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return tile number (row-major over tiles)
+	 */
+	int tileOf(int x, int y) {
+		return (y/tile)*tilesX + x/tile;
+	}
+
+	/**
+	 * <p>Gets the mapped buffer for a tile, mapping it if necessary.</p>
+	 *
+	 * @param t tile number
+	 * @return mapped tile
+	 */
+	private MappedByteBuffer map(int t) {
+		if (t == lastTile) {
+			return last;
+		}
+		MappedByteBuffer b = mapped[t];
+		if (b == null) {
+			try {
+				b = channel.map(FileChannel.MapMode.READ_WRITE, t*tileBytes(), tileBytes());
+			}
+			catch (IOException e) {
+				throw new java.io.UncheckedIOException("Unable to map tile "+t, e);
+			}
+			b.order(ByteOrder.nativeOrder());
+			mapped[t] = b;
+			held++;
+			pageIns++;
+		}
+		lastTile = t;
+		last = b;
+		return b;
+	}
+
+	/**
+	 * <p>Byte offset of a point within its tile.</p>
+	 */
+	private int offset(int x, int y) {
+		return ((y%tile)*tile + x%tile)*4;
+	}
+
+	/**
+	 * <p>Reads a float cell.</p>
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return cell value
+	 */
+	float getFloat(int x, int y) {
+		return map(tileOf(x,y)).getFloat(offset(x,y));
+	}
+
+	/**
+	 * <p>Writes a float cell.</p>
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param v cell value
+	 */
+	void putFloat(int x, int y, float v) {
+		map(tileOf(x,y)).putFloat(offset(x,y), v);
+	}
+
+	/**
+	 * <p>Reads an int cell.</p>
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return cell value
+	 */
+	int getInt(int x, int y) {
+		return map(tileOf(x,y)).getInt(offset(x,y));
+	}
+
+	/**
+	 * <p>Writes an int cell.</p>
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param v cell value
+	 */
+	void putInt(int x, int y, int v) {
+		map(tileOf(x,y)).putInt(offset(x,y), v);
+	}
+
+	/**
+	 * <p>Drops all mappings and closes the file.</p>
+	 *
+	 * @throws IOException if the file cannot be closed
+	 */
+	void close() throws IOException {
+		Arrays.fill(mapped, null);
+		held = 0;
+		lastTile = -1;
+		last = null;
+		channel.close();
+		file.close();
+	}
+}
@@ -1,6 +1,7 @@
 package flow;
 
 import java.awt.image.*;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Color;
 
@@ -15,18 +16,87 @@ import java.awt.Color;
  */
 public class Water {
 
+	// Back buffers: written by the simulation threads during a step
 	BufferedImage img;
-	int[][] depth;
+	Depths depth;
+	private int[] px; // Pixels of img (row-major)
+
+	// Front buffers: frozen copy of the last completed step, for rendering/exports
+	BufferedImage frontImg;
+	Depths frontDepth;
+	private int[] frontPx;
+
+	/**
+	 * <p>Lock held while the front buffers are read or swapped.</p>
+	 */
+	final Object frame = new Object();
+
+	/**
+	 * <p>Step the front buffers hold (guarded by {@link frame}). Set by
+	 * {@link swap}, so it always goes with the water it numbers.</p>
+	 */
+	int frontStep;
+
 	Terrain terrain;
 
 	// Keep track of water to check concurrency bugs
 	AtomicInteger waterAdded;
 	AtomicInteger waterRemoved;
-	AtomicInteger waterCount;
+
+	/**
+	 * <p>Region sums of the front buffer (see {@link waterIn}).</p>
+	 */
+	private final WetIndex index;
+
+	/**
+	 * <p>Whether to count water added and removed (see {@link StressTest}).</p>
+	 */
+	volatile boolean audit;
+
+	/**
+	 * <p>For testing: in about one in this many changes to a depth, yield
+	 * between reading and writing it, so a race on that point is far more
+	 * likely to show up (0 never yields; see {@link StressTest}).</p>
+	 */
+	int yieldOneIn;
+
+	/**
+	 * <p>Flux mode: an update moves as many units as it takes to level the
+	 * point's surface with its lowest neighbour's (see {@link units}),
+	 * instead of one. A deep pool then spreads in a few steps rather than
+	 * one step per unit of depth. Set before the simulation starts.</p>
+	 */
+	boolean flux;
+
+	/**
+	 * <p>Bytes per point of the depth grids (4, or 2 or 1 for compact
+	 * depths, see {@link Depths}). Read when a Water is created.</p>
+	 */
+	static int depthBytes = 4;
+
+	/**
+	 * <p>Units added that did not fit in a full point (compact depths only).</p>
+	 */
+	long clipped;
 
 	// Water color
 	final static float MAX_HUE = 234f/360f;
 	final static float MIN_HUE = 196f/360f;
+	final static int MAX_DEPTH = 6; // Deepest in hue range, shallowest is 1
+	// (max depth is kinda randomly chosen atm)
+
+	/**
+	 * <p>ARGB color of each depth up to {@link MAX_DEPTH} (0 is transparent),
+	 * so {@link color} does no HSB conversion.</p>
+	 */
+	private final static int[] PALETTE = new int[MAX_DEPTH+1];
+	static {
+		for (int d=1; d<=MAX_DEPTH; d++) {
+			float h = (MAX_HUE - MIN_HUE)*(d - 1)/(MAX_DEPTH - 1) + MIN_HUE;
+			// Use s=100, b=75; Blue: A=255 RGB as calculated
+			PALETTE[d] = (255<<24) | Color.HSBtoRGB(h, 1f, 0.75f);
+		}
+	}
 
 	/**
 	 * <p>Initializes terrain, depth, image.</p>
@@ -36,26 +106,75 @@ public class Water {
 	Water (Terrain t) {
 		terrain = t;
 
-		/* Water conservation testing    |
-		 * Uncomment for debugging       v
-		 */
-		//waterAdded = new AtomicInteger(0);
-		//waterRemoved = new AtomicInteger(0);
-		//waterCount = new AtomicInteger(0);
+		// Water conservation testing (counted if audit is set)
+		waterAdded = new AtomicInteger(0);
+		waterRemoved = new AtomicInteger(0);
 
 		// filled with zeros by default
-		depth = new int[terrain.dimx()][terrain.dimy()];
+		depth = Depths.create(depthBytes, terrain.dimx(), terrain.dimy());
+		frontDepth = Depths.create(depthBytes, terrain.dimx(), terrain.dimy());
+		index = new WetIndex(depth);
 
 		// transparent image
 		img = new BufferedImage(terrain.dimx(), terrain.dimy(), BufferedImage.TYPE_INT_ARGB);
+		frontImg = new BufferedImage(terrain.dimx(), terrain.dimy(), BufferedImage.TYPE_INT_ARGB);
+		px = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+		frontPx = ((DataBufferInt) frontImg.getRaster().getDataBuffer()).getData();
 	}
 
 	/**
 	 * <p>Accessor for water image.</p>
+	 * <p>Returns the front buffer, i.e. the water as at the end of the
+	 * last completed step. Hold {@link frame} while drawing it.</p>
 	 * @return water image
 	 */
 	BufferedImage getImage() {
-		return img;
+		return frontImg;
+	}
+
+	/**
+	 * <p>Swaps front and back buffers.</p>
+	 * <p>Only called between steps, when no thread is writing the back
+	 * buffers. Afterwards the back buffers are out of date until
+	 * {@link copyBack} has been run over all parts.</p>
+	 * 
+	 * @param step step the back buffers hold (becomes {@link frontStep})
+	 */
+	void swap(int step) {
+		synchronized (frame) {
+			frontStep = step;
+			index.changed(depth, frontDepth); // Tiles the step changed
+
+			BufferedImage i = img;
+			img = frontImg;
+			frontImg = i;
+
+			int[] p = px;
+			px = frontPx;
+			frontPx = p;
+
+			Depths d = depth;
+			depth = frontDepth;
+			frontDepth = d;
+		}
+	}
+
+	/**
+	 * <p>Copies part of the front buffers into the back buffers.</p>
+	 * <p>The buffers are split into <code>parts</code> equal chunks so that
+	 * each simulation thread can copy one before the next step starts.</p>
+	 * 
+	 * @param part chunk to copy [0, parts)
+	 * @param parts number of chunks
+	 */
+	void copyBack(int part, int parts) {
+		int dimx = terrain.dimx();
+		depth.copyColumns(frontDepth, part*dimx/parts, (part+1)*dimx/parts);
+
+		int[] from = frontPx;
+		int[] to = px;
+		int lo = (int)((long)part*from.length/parts), hi = (int)((long)(part+1)*from.length/parts);
+		System.arraycopy(from, lo, to, lo, hi-lo);
 	}
 
 	/**
@@ -76,49 +195,55 @@ public class Water {
 
 	/**
 	 * <p>Count up water on grid.</p>
+	 * <p>Adds up the tile totals of the back buffer (see {@link Depths#tally}),
+	 * rather than every point. Exact between steps; while a step is running
+	 * it is a snapshot in passing, as the depths are.</p>
 	 * @return Number of water units currently on the grid
 	 */
 	int waterCount() {
-		synchronized (depth) {
-			waterCount.set(0);
-			for(int i=0; i<terrain.dimx(); i++) {
-				for(int j=0; j<terrain.dimy(); j++) {
-					if(depth[i][j] > 0) {
-						for(int d=0; d<depth[i][j]; d++) {
-							waterCount.getAndIncrement();
-						}
-					}
-				}
-			}
-			return waterCount.get();
+		return (int)depth.total();
+	}
+
+	/**
+	 * <p>Water in a rectangle, as at the end of the last completed step.</p>
+	 * <p>Summed from the tile totals (see {@link WetIndex}), so it costs far
+	 * less than scanning the rectangle. Tiles changed since the last call are
+	 * brought into the index first.</p>
+	 * 
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param x1 column after the last
+	 * @param y1 row after the last
+	 * @return units of water in <code>[x0, x1) x [y0, y1)</code>
+	 */
+	long waterIn(int x0, int y0, int x1, int y1) {
+		synchronized (frame) {
+			index.sync(frontDepth);
+			return index.sum(frontDepth, x0, y0, x1, y1);
 		}
 	}
 
 	/**
-	 * <p>Set zero depth everywhere.</p>
+	 * <p>Set zero depth everywhere (back buffers).</p>
 	 */
 	void reset() {
-		for(int i=0; i<terrain.dimx(); i++) {
-			for(int j=0; j<terrain.dimy(); j++) {
-				/* Water conservation testing    |
-				 * Uncomment for debugging       v
-				 */
-				//if (depth[i][j] > 0) {
-				//	for (int d=0; d<depth[i][j]; d++) {
-				//		waterRemoved.getAndIncrement();
-				//	}
-				//}
-
-				depth[i][j] = 0;
+		// Water conservation testing
+		if (audit) {
+			for(int i=0; i<terrain.dimx(); i++) {
+				for(int j=0; j<terrain.dimy(); j++) {
+					waterRemoved.getAndAdd(depth.get(i,j));
+				}
 			}
 		}
+		depth.clear();
 
 		// set to transparent
-		img = new BufferedImage(terrain.dimx(), terrain.dimy(), BufferedImage.TYPE_INT_ARGB);
+		java.util.Arrays.fill(px, 0);
 	}
 
 	/**
 	 * <p>Adjusts the depth of water by specified amount, at given coords.</p>
+	 * <p>Keeps the total of the point's tile as well ({@link Depths#tally}).</p>
 	 * <p>{@link flowS} is this with synchronization.</p>
 	 * 
 	 * @param change Amount of water to add (or remove, if negative), value of 0 sets depth to 0
@@ -126,12 +251,18 @@ public class Water {
 	 * @param y y-coordinate of point
 	 */
 	void flow(int change, int x, int y) {
+		int d = depth.get(x, y);
 		if (change==0) {
-			depth[x][y] = 0;
+			change = -d;
 		}
-		else {
-			depth[x][y] += change;
+		else if (yieldOneIn > 0) {
+			// Yield time on processor to other threads mid read-modify-write
+			if (ThreadLocalRandom.current().nextInt(yieldOneIn) == 0) {
+				Thread.yield();
+			}
 		}
+		depth.set(x, y, d + change);
+		depth.tally(x, y, change);
 	}
 
 	/**
@@ -152,6 +283,8 @@ public class Water {
 
 	/**
 	 * <p>Adds water with given dimensions at given coords.</p>
+	 * <p>With compact depths, a drop deeper than a point can hold is
+	 * clipped (counted in {@link clipped}).</p>
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
@@ -159,17 +292,19 @@ public class Water {
 	 * @param s spread of water drop (num pixels to spread out from center)
 	 */
 	void add(int x, int y, int d, int s) {
+		if (d > depth.max) {
+			clipped += (long)(d - depth.max)*(2*s+1)*(2*s+1);
+			d = depth.max;
+		}
 		for (int i=-s; i<=s; i++) {
 			for (int j=-s; j<=s; j++) {
-				depth[x+i][y+j] = d;
-				color(x+i,y+j);
+				// Water conservation testing (drop replaces what was there)
+				if (audit) {
+					waterAdded.getAndAdd(d - depth.get(x+i,y+j));
+				}
 
-				/* Water conservation testing    |
-				 * Uncomment for debugging       v
-				 */
-				//for (int a=0; a<d; a++) {
-				//	waterAdded.getAndIncrement();
-				//}
+				depth.put(x+i, y+j, d);
+				color(x+i,y+j);
 			}
 		}
 	}
@@ -177,38 +312,29 @@ public class Water {
 	/**
 	 * <p>Sets color of water at given coords.</p>
 	 * <p>Determines the color for the point based on the depth of
-	 * water at the point. Scales the depth to a hue range, and
-	 * converts HSB or RGB to set for the image.</p>
+	 * water at the point. Depths are scaled to a hue range (see
+	 * {@link PALETTE}), and the pixel is written straight into the
+	 * image's raster (<code>setRGB</code> allocates on every call).</p>
 	 * <p>{@link colorS} is this with synchronization.</p>
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
 	 */
 	void color(int x, int y) {
-		int maxDepth = 6; // Deepest in hue range, shallowest is 1
-		// (max depth is kinda randomly chosen atm)
-		float h; // hue
-
-		// Calculate Hue value for this point
-		if(depth[x][y] <= maxDepth) {
-			h = (MAX_HUE - MIN_HUE)*(depth[x][y] - 1)/(maxDepth - 1) + MIN_HUE;
-		}
-		else {
-			h = MAX_HUE;
-		}
+		int d = depth.get(x, y);
 
-		// Use s=100, b=75
-		int rgb = Color.HSBtoRGB(h, 1f, 0.75f);
+		// Empty (or invalid): A=0 R=0 G=0 B=0
+		px[y*terrain.dimx + x] = d <= 0 ? 0 : PALETTE[Math.min(d, MAX_DEPTH)];
+	}
 
-		// https://dyclassroom.com/image-processing-project/how-to-get-and-set-pixel-value-in-java
-		if (depth[x][y]==0) {
-			// Empty: A=0 R=0 G=0 B=0
-			img.setRGB(x, y, 0);
-		}
-		else {
-			// Blue: A=255 RGB as calculated
-			int p = (255<<24) | rgb;
-			img.setRGB(x, y, p);
+	/**
+	 * <p>Sets color of water at every point (after depths are replaced wholesale).</p>
+	 */
+	void recolor() {
+		for (int x=0; x<terrain.dimx(); x++) {
+			for (int y=0; y<terrain.dimy(); y++) {
+				color(x, y);
+			}
 		}
 	}
 
@@ -235,19 +361,18 @@ public class Water {
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
+	 * @return true if there was water to clear
 	 */
-	void updateEdge(int x, int y) {
-		/* Water conservation testing    |
-		 * Uncomment for debugging       v
-		 */
-		//if (depth[x][y] > 0) {
-		//	for (int i=0; i<depth[x][y]; i++) {
-		//		waterRemoved.getAndIncrement();
-		//	}
-		//}
+	boolean updateEdge(int x, int y) {
+		// Water conservation testing
+		if (audit) {
+			waterRemoved.getAndAdd(depth.get(x, y));
+		}
 
+		boolean wet = depth.get(x, y) != 0;
 		flow(0, x, y);
 		color(x, y);
+		return wet;
 	}
 
 	/**
@@ -258,34 +383,40 @@ public class Water {
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
+	 * @return true if there was water to clear
 	 */
-	void updateEdgeS(int x, int y) {
+	boolean updateEdgeS(int x, int y) {
 		synchronized (depth) {
-			updateEdge(x,y);
+			return updateEdge(x,y);
 		}
 	}
 
 	/**
 	 * <p>Moves water to the lowest neighboring point.</p>
+	 * <p>Moves one unit, or in {@link flux} mode as many as level the two
+	 * surfaces.</p>
 	 * <p>{@link updateS} is this with synchronization.</p>
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
+	 * @return neighbour number water moved to, or -1 if it didn't move
 	 */
-	void update(int x, int y) {
-		int[] nextPt = new int[2];
-
-		if (depth[x][y] != 0) {
-			findLowest(x, y, nextPt);
+	int update(int x, int y) {
+		if (depth.get(x, y) != 0) {
+			int i = findLowest(x, y, depth, 0);
 
-			if (nextPt[0]<0) { return; } // no water flow
-			flow(-1, x, y); // water out
-			flow(1, nextPt[0], nextPt[1]); // water in
+			if (i<0) { return -1; } // no water flow
+			int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+			int k = flux ? units(x, y, nx, ny, depth, 1) : 1;
+			flow(-k, x, y); // water out
+			flow(k, nx, ny); // water in
 
 			// update color
 			color(x, y);
-			color(nextPt[0], nextPt[1]);
+			color(nx, ny);
+			return i;
 		}
+		return -1;
 	}
 
 	/**
@@ -297,57 +428,111 @@ public class Water {
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
+	 * @return neighbour number water moved to, or -1 if it didn't move
 	 */
-	void updateS(int x, int y) {
+	int updateS(int x, int y) {
 		synchronized (depth) {
-			int[] nextPt = new int[2];
-
-			if (depth[x][y] != 0) {
-				findLowestS(x, y, nextPt);
+			if (depth.get(x, y) != 0) {
+				int i = findLowestS(x, y);
 				// This must be synchronized, so can't just call update()
 
-				if (nextPt[0]<0) { return; } // no water flow
-				flow(-1, x, y); // water out
-				flow(1, nextPt[0], nextPt[1]); // water in
+				if (i<0) { return -1; } // no water flow
+				int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+				int k = flux ? units(x, y, nx, ny, depth, 1) : 1;
+				flow(-k, x, y); // water out
+				flow(k, nx, ny); // water in
 
 				// update color
 				color(x, y);
-				color(nextPt[0], nextPt[1]);
+				color(nx, ny);
+				return i;
 			}
+			return -1;
 		}
 	}
 
+	/**
+	 * <p>Units to move from a point to a lower neighbour in {@link flux} mode.</p>
+	 * <p>Each unit moved lowers one surface and raises the other by 0.01,
+	 * so half the difference in surfaces (in units) levels them. At least
+	 * one unit moves, as in unit mode, and no more than the point has or
+	 * the neighbour can hold.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param nx x-coordinate of lower neighbour
+	 * @param ny y-coordinate of lower neighbour
+	 * @param src depths to decide from
+	 * @param ways most points that can move water into one neighbour at
+	 * once (1, or 8 in Jacobi mode, where each gets a share of the room left)
+	 * @return units to move, at least 1
+	 */
+	private int units(int x, int y, int nx, int ny, Depths src, int ways) {
+		int d = src.get(x, y), nd = src.get(nx, ny);
+
+		// Difference in surfaces, in units of depth
+		float gap;
+		char[][] q = terrain.qheight;
+		if (q != null) {
+			gap = (q[x][y] - q[nx][ny])/terrain.qunit + (d - nd);
+		}
+		else {
+			gap = (terrain.height[x][y] - terrain.height[nx][ny])/0.01f + (d - nd);
+		}
+
+		int k = (int)(gap/2);
+		return Math.max(1, Math.min(k, Math.min(d, (src.max - nd)/ways)));
+	}
+
 	/**
 	 * <p>Finds lowest neighboring point.</p>
+	 * <p>Neighbours are checked in order of terrain height, using the
+	 * terrain's {@link DescentTable}. A neighbour's surface can't be below
+	 * its terrain, so once a neighbour's terrain is above the lowest
+	 * surface found, no later one can be lower and the search stops. Ties
+	 * go to the neighbour that comes first top to bottom, left to right,
+	 * the same as checking all eight in that order.</p>
+	 * <p>A neighbour that is already as deep as {@link Depths#max} (less
+	 * <code>reserve</code>) can't take more water, so is passed over
+	 * (compact depths only). If the
+	 * terrain's heights are quantized ({@link Terrain#qheight}), surfaces
+	 * are compared in quantized units.</p>
 	 * <p>{@link findLowestS} is this with synchronization.</p>
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
-	 * @param c coords of lowest point (negative value indicates that none are lower)
+	 * @param depth depths to compare
+	 * @param reserve room to keep in a neighbour for water from others
+	 * (0, or 7 in Jacobi mode, where up to 8 points move water into it at once)
+	 * @return neighbour number of lowest point (offsets {@link DescentTable#DX},
+	 * {@link DescentTable#DY}), or -1 if none are lower
 	 */
-	private void findLowest(int x, int y, int[] c) {
+	private int findLowest(int x, int y, Depths depth, int reserve) {
+		char[][] q = terrain.qheight;
+		if (q != null) {
+			return findLowestQ(x, y, q, depth, reserve);
+		}
+		float[][] height = terrain.height;
+		int full = depth.max - reserve;
 
 		// set initial min to surface of current point
-		float min = terrain.height[x][y] + 0.01f*depth[x][y];
-
-		// surrounding surface values
-		float[] s = {
-				terrain.height[x-1][y-1] + 0.01f*depth[x-1][y-1],
-				terrain.height[x-1][y] + 0.01f*depth[x-1][y],
-				terrain.height[x-1][y+1] + 0.01f*depth[x-1][y+1],
-				terrain.height[x][y-1] + 0.01f*depth[x][y-1],
-				terrain.height[x][y+1] + 0.01f*depth[x][y+1],
-				terrain.height[x+1][y-1] + 0.01f*depth[x+1][y-1],
-				terrain.height[x+1][y] + 0.01f*depth[x+1][y],
-				terrain.height[x+1][y+1] + 0.01f*depth[x+1][y+1]
-		}; // order: top to bottom, left to right
-
-		int idxMin = -1; // index in s of min value
-
-		// find min
-		for (int i=0; i<8; i++) {
-			if (s[i] < min) {
-				min = s[i];
+		float min = surface(height[x][y], depth.get(x, y));
+		int idxMin = -1; // neighbour number of min value
+
+		int ord = terrain.descent.order[x*terrain.dimy + y];
+		for (int k=0; k<8; k++, ord >>>= 4) {
+			int i = ord & 0xF;
+			int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+
+			float h = height[nx][ny];
+			if (h > min) { break; } // rest are higher still
+
+			int d = depth.get(nx, ny);
+			if (d >= full) { continue; } // can't take more
+
+			float s = surface(h, d);
+			if (lower(s, i, min, idxMin)) {
+				min = s;
 				idxMin = i;
 			}
 		}
@@ -357,45 +542,78 @@ public class Water {
 		 * because boundaries are dealt with separately in run()
 		 */
 
-		// set coords corresponding to min surface
-		switch (idxMin) {
-		case 0:
-			c[0] = x-1;
-			c[1] = y-1;
-			break;
-		case 1:
-			c[0] = x-1;
-			c[1] = y;
-			break;
-		case 2:
-			c[0] = x-1;
-			c[1] = y+1;
-			break;
-		case 3:
-			c[0] = x;
-			c[1] = y-1;
-			break;
-		case 4:
-			c[0] = x;
-			c[1] = y+1;
-			break;
-		case 5:
-			c[0] = x+1;
-			c[1] = y-1;
-			break;
-		case 6:
-			c[0] = x+1;
-			c[1] = y;
-			break;
-		case 7:
-			c[0] = x+1;
-			c[1] = y+1;
-			break;
-		default:
-			c[0] = -1;
-			c[1] = -1;
-			break;
+		return idxMin;
+	}
+
+	/**
+	 * <p>Height of the water surface on a point.</p>
+	 * <p>Each unit of water is 0.01 deep. Part of the flow rule shared
+	 * with {@link OutOfCore}.</p>
+	 *
+	 * @param h terrain height
+	 * @param d water depth (units)
+	 * @return surface height
+	 */
+	static float surface(float h, int d) {
+		return h + 0.01f*d;
+	}
+
+	/**
+	 * <p>Whether water would rather go to a neighbour than to the lowest
+	 * one found so far.</p>
+	 * <p>The lower surface wins; on a tie, the neighbour that comes first
+	 * in {@link DescentTable#DX} order, so the result doesn't depend on
+	 * the order neighbours are checked in. Staying put (no lowest yet)
+	 * wins ties. Part of the flow rule shared with {@link OutOfCore}.</p>
+	 *
+	 * @param s surface of neighbour
+	 * @param i neighbour number
+	 * @param min lowest surface so far (to begin with, the point's own)
+	 * @param idxMin neighbour number of <code>min</code>, or -1 for the point itself
+	 * @return true if neighbour <code>i</code> is the new lowest
+	 */
+	static boolean lower(float s, int i, float min, int idxMin) {
+		return s < min || (s == min && idxMin >= 0 && i < idxMin);
+	}
+
+	/**
+	 * <p>{@link findLowest} on quantized heights.</p>
+	 * <p>Heights are <code>offset + q*scale</code>, so surfaces are
+	 * compared as <code>q + depth*0.01/scale</code>, which orders them the
+	 * same way without converting back.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param q quantized heights
+	 * @param depth depths to compare
+	 * @param reserve room to keep in a neighbour (see {@link findLowest})
+	 * @return neighbour number of lowest point, or -1 if none are lower
+	 */
+	private int findLowestQ(int x, int y, char[][] q, Depths depth, int reserve) {
+		int full = depth.max - reserve;
+		float unit = terrain.qunit;
+
+		float min = q[x][y] + unit*depth.get(x, y);
+		int idxMin = -1;
+
+		int ord = terrain.descent.order[x*terrain.dimy + y];
+		for (int k=0; k<8; k++, ord >>>= 4) {
+			int i = ord & 0xF;
+			int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+
+			int h = q[nx][ny];
+			if (h > min) { break; }
+
+			int d = depth.get(nx, ny);
+			if (d >= full) { continue; }
+
+			float s = h + unit*d;
+			if (lower(s, i, min, idxMin)) {
+				min = s;
+				idxMin = i;
+			}
 		}
+		return idxMin;
 	}
 
 	/**
@@ -406,11 +624,104 @@ public class Water {
 	 * 
 	 * @param x x-coordinate of point
 	 * @param y y-coordinate of point
-	 * @param c coords of lowest point (negative value indicates that none are lower)
+	 * @return neighbour number of lowest point, or -1 if none are lower
 	 */
-	private void findLowestS(int x, int y, int[] c) {
+	private int findLowestS(int x, int y) {
 		synchronized (depth) {
-			findLowest(x,y,c);
+			return findLowest(x, y, depth, 0);
+		}
+	}
+
+	// =============
+	//  Jacobi mode
+	// =============
+
+	/**
+	 * <p>Clears water from a point at the edge (Jacobi mode).</p>
+	 * <p>Removes the water the point had at the end of the last step
+	 * (front buffer). Water moved into it during this step stays until
+	 * the next step, as in {@link updateEdge}.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @return true if there was water to clear
+	 */
+	boolean updateEdgeJ(int x, int y) {
+		int d = frontDepth.get(x, y);
+		if (d == 0) { return false; }
+
+		// Water conservation testing
+		if (audit) {
+			waterRemoved.getAndAdd(d);
+		}
+
+		flow(-d, x, y);
+		color(x, y);
+		return true;
+	}
+
+	/**
+	 * <p>Moves water to the lowest neighboring point (Jacobi mode).</p>
+	 * <p>Decides from the front buffer, which no thread writes during a
+	 * step, and adds the move to the back buffer (which starts the step as
+	 * a copy of the front). Every point's move then depends only on the
+	 * last step, and moves add up the same in any order, so the result
+	 * doesn't depend on the order points are visited or how many threads
+	 * there are.</p>
+	 * <p>Only the calling thread's zone (columns <code>lo</code> to
+	 * <code>hi-1</code>) is written. Water moving into the next column on
+	 * either side is added to <code>left</code> or <code>right</code>
+	 * instead, and added to the back buffer once the step is done (see
+	 * {@link addColumn}), so no locks are needed. A neighbour keeps room
+	 * for the eight points around it to move water in at once.</p>
+	 * 
+	 * @param x x-coordinate of point
+	 * @param y y-coordinate of point
+	 * @param lo first column of the zone
+	 * @param hi column after the last
+	 * @param left water moved into column <code>lo-1</code>, by row
+	 * @param right water moved into column <code>hi</code>, by row
+	 * @return neighbour number water moved to, or -1 if it didn't move
+	 */
+	int updateJ(int x, int y, int lo, int hi, int[] left, int[] right) {
+		Depths front = frontDepth;
+		if (front.get(x, y) == 0) { return -1; }
+
+		int i = findLowest(x, y, front, 7);
+		if (i<0) { return -1; } // no water flow
+		int nx = x+DescentTable.DX[i], ny = y+DescentTable.DY[i];
+		int k = flux ? units(x, y, nx, ny, front, 8) : 1;
+
+		flow(-k, x, y); // water out
+		color(x, y);
+		if (nx < lo) {
+			left[ny] += k;
+		}
+		else if (nx >= hi) {
+			right[ny] += k;
+		}
+		else {
+			flow(k, nx, ny); // water in
+			color(nx, ny);
+		}
+		return i;
+	}
+
+	/**
+	 * <p>Adds water moved into a column by a neighbouring zone (Jacobi mode),
+	 * and clears the amounts.</p>
+	 * <p>Only called between steps.</p>
+	 * 
+	 * @param x column
+	 * @param in water moved in, by row
+	 */
+	void addColumn(int x, int[] in) {
+		for (int y=0; y<in.length; y++) {
+			if (in[y] != 0) {
+				flow(in[y], x, y);
+				color(x, y);
+				in[y] = 0;
+			}
 		}
 	}
 }
\ No newline at end of file
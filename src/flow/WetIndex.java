@@ -0,0 +1,187 @@
+package flow;
+
+/**
+ * <p>Sums of water over rectangles of the grid, without scanning them.</p>
+ * <p>Built on the tile totals each {@link Depths} keeps as water moves
+ * (see {@link Depths#tally}): a two-dimensional Fenwick tree over the
+ * tiles gives the total of any block of whole tiles in
+ * O(log(columns)&middot;log(tiles per column)). Points in tiles the
+ * rectangle only partly covers (at most {@link Depths#STRIP}-1 above and
+ * below it in each column) are read directly.</p>
+ * <p>The tree follows one grid through its changes (in {@link Water},
+ * the front buffer through each swap). When the grid is replaced by a new
+ * version, {@link changed} finds the tiles that differ, looking only in the
+ * columns {@link Depths#tally} marked dirty, and adds them to a list of
+ * tiles to update. {@link sync} then updates the tree from that list
+ * alone, before summing. Keeping the index thus costs the simulation a
+ * flag per change, plus a look at the dirty columns per step; a sum costs
+ * O(log&sup2;) for each tile changed since the last one.</p>
+ * <p>Not thread safe: hold the grid still (e.g. {@link Water#frame} for
+ * the front buffer) while calling any of these.</p>
+ *
+ * @author avk
+ */
+public class WetIndex {
+
+	int dimx, strips; // Tiles: columns, and per column
+
+	/**
+	 * <p>Tile totals as of the last {@link sync}.</p>
+	 */
+	private final int[] known;
+
+	/**
+	 * <p>Fenwick tree over the tiles, laid out like the totals.</p>
+	 */
+	private final long[] tree;
+
+	// Tiles whose totals changed since the last sync: flag per tile, and list
+	private final boolean[] pending;
+	private final int[] changes;
+	private int numChanges;
+
+	/**
+	 * <p>Sets up an index of an empty grid.</p>
+	 *
+	 * @param d grid to index (for its dimensions)
+	 */
+	WetIndex(Depths d) {
+		dimx = d.dimx;
+		strips = d.strips;
+		known = new int[dimx*strips];
+		tree = new long[dimx*strips];
+		pending = new boolean[dimx*strips];
+		changes = new int[dimx*strips];
+	}
+
+	/**
+	 * <p>Notes the tiles that changed from one version of the grid to the next.</p>
+	 * <p>Only looks at columns <code>now</code> has marked {@link Depths#dirty},
+	 * and clears the marks. Call with each new version of the grid,
+	 * before any sum of it.</p>
+	 *
+	 * @param now new version
+	 * @param before version the index last followed
+	 */
+	void changed(Depths now, Depths before) {
+		for (int x=0; x<dimx; x++) {
+			if (!now.dirty[x]) { continue; }
+			now.dirty[x] = false;
+			for (int i=x*strips; i<(x+1)*strips; i++) {
+				if (now.sums[i] != before.sums[i] && !pending[i]) {
+					pending[i] = true;
+					changes[numChanges++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * <p>Brings the tree up to date with the tiles noted by {@link changed}.</p>
+	 *
+	 * @param d latest version of the grid
+	 * @return number of tiles updated
+	 */
+	int sync(Depths d) {
+		int[] sums = d.sums;
+		int n = numChanges;
+		for (int k=0; k<n; k++) {
+			int i = changes[k];
+			pending[i] = false;
+			int delta = sums[i] - known[i];
+			if (delta != 0) {
+				known[i] = sums[i];
+				add(i/strips, i%strips, delta);
+			}
+		}
+		numChanges = 0;
+		return n;
+	}
+
+	/**
+	 * <p>Adds to one tile's total in the tree.</p>
+	 *
+	 * @param x column
+	 * @param s tile within the column
+	 * @param delta change in total
+	 */
+	private void add(int x, int s, long delta) {
+		for (int i=x+1; i<=dimx; i += i & -i) {
+			int row = (i-1)*strips;
+			for (int j=s+1; j<=strips; j += j & -j) {
+				tree[row + j-1] += delta;
+			}
+		}
+	}
+
+	/**
+	 * @param x columns [0, x)
+	 * @param s tiles [0, s) of each
+	 * @return total water in those tiles
+	 */
+	private long prefix(int x, int s) {
+		long t = 0;
+		for (int i=x; i>0; i -= i & -i) {
+			int row = (i-1)*strips;
+			for (int j=s; j>0; j -= j & -j) {
+				t += tree[row + j-1];
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * <p>Total water in a rectangle of a grid.</p>
+	 *
+	 * @param d grid to sum, as last {@link sync}ed
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param x1 column after the last
+	 * @param y1 row after the last
+	 * @return units of water in <code>[x0, x1) x [y0, y1)</code>
+	 */
+	long sum(Depths d, int x0, int y0, int x1, int y1) {
+		x0 = Math.max(x0, 0);
+		y0 = Math.max(y0, 0);
+		x1 = Math.min(x1, d.dimx);
+		y1 = Math.min(y1, d.dimy);
+		if (x0 >= x1 || y0 >= y1) { return 0; }
+
+		// Whole tiles
+		int s0 = (y0 + Depths.STRIP-1) >> Depths.STRIP_SHIFT;
+		int s1 = y1 >> Depths.STRIP_SHIFT;
+		if (s0 >= s1) {
+			return cells(d, x0, y0, x1, y1); // Within one or two tiles per column
+		}
+		long t = prefix(x1, s1) - prefix(x0, s1) - prefix(x1, s0) + prefix(x0, s0);
+
+		// Parts of tiles above and below
+		t += cells(d, x0, y0, x1, s0 << Depths.STRIP_SHIFT);
+		t += cells(d, x0, s1 << Depths.STRIP_SHIFT, x1, y1);
+		return t;
+	}
+
+	/**
+	 * <p>Adds up points one by one, passing over dry tiles.</p>
+	 *
+	 * @param d grid to sum
+	 * @param x0 first column
+	 * @param y0 first row
+	 * @param x1 column after the last
+	 * @param y1 row after the last
+	 * @return units of water in <code>[x0, x1) x [y0, y1)</code>
+	 */
+	private static long cells(Depths d, int x0, int y0, int x1, int y1) {
+		long t = 0;
+		for (int x=x0; x<x1; x++) {
+			for (int y=y0; y<y1; y++) {
+				if (d.dry(x, y)) {
+					y |= Depths.STRIP-1; // On to the next tile
+					continue;
+				}
+				t += d.get(x, y);
+			}
+		}
+		return t;
+	}
+}